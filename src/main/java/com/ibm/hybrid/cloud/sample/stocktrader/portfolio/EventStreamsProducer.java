@@ -17,8 +17,11 @@
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio;
 
 import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -110,6 +113,21 @@ public class EventStreamsProducer {
         return recordMetadata;
     }
 
+    /** Sends all of these before waiting for any of them, so the producer can put them in one batch request.  Only
+     *  these records are waited for; flush() would also wait on every other thread's sends through this producer. */
+    public List<RecordMetadata> produce(List<String> messages) throws InterruptedException, ExecutionException, ConnectException {
+        List<Future<RecordMetadata>> sends = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            sends.add(kafkaProducer.send(new ProducerRecord<>(topic, null, message)));
+        }
+
+        List<RecordMetadata> recordMetadata = new ArrayList<>(sends.size());
+        for (Future<RecordMetadata> send : sends) {
+            recordMetadata.add(send.get());
+        }
+        return recordMetadata;
+    }
+
     public void shutdown() {
         kafkaProducer.flush();
         kafkaProducer.close();
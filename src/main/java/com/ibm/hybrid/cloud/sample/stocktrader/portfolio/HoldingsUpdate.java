@@ -0,0 +1,144 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Quote;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Stock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+
+/** The in-memory side of a trade: applies each leg to a portfolio's holdings, then re-quotes just the traded ones
+ *  and adjusts the total by how much they changed, rather than re-adding every holding.  Says which Stock rows to
+ *  insert and delete, but leaves doing that, and everything else about the trade, to PortfolioService. */
+public class HoldingsUpdate {
+	private static Logger logger = Logger.getLogger(HoldingsUpdate.class.getName());
+
+	private Portfolio portfolio;
+	private Map<String, Stock> holdings = new HashMap<String, Stock>();
+	private Set<String> traded = new LinkedHashSet<String>();
+	private Set<String> created = new HashSet<String>(); //holdings that are new, inserted once every leg is applied
+	private Set<String> closed = new HashSet<String>(); //holdings sold down to nothing, deleted then unless a later leg buys back in
+	private List<Stock> inserts = new ArrayList<Stock>();
+	private List<Stock> deletes = new ArrayList<Stock>();
+	private double oldTotal;
+	private double total;
+
+	public HoldingsUpdate(Portfolio portfolio) {
+		this.portfolio = portfolio;
+		for (Stock holding : portfolio.getStockList()) holdings.put(holding.getSymbol(), holding);
+		oldTotal = portfolio.getTotal();
+		total = oldTotal;
+	}
+
+	/** Applies one leg, which has already been charged this commission */
+	public void apply(String symbol, int shares, double commission) {
+		Stock stock = holdings.get(symbol);
+		if (traded.add(symbol)) total -= getContribution(stock); //added back, as re-quoted, in finish
+
+		if (stock == null) { //row doesn't exist
+			stock = new Stock();
+			stock.setSymbol(symbol);
+			stock.setShares(shares);
+			stock.setCommission(commission);
+			stock.setPortfolio(portfolio);
+			holdings.put(symbol, stock);
+			created.add(symbol);
+		} else if (closed.remove(symbol)) { //as if its row had been deleted and a new one inserted
+			stock.setShares(shares);
+			stock.setCommission(commission);
+		} else {
+			int newShares = stock.getShares()+shares;
+			double newCommission = stock.getCommission()+commission;
+			logger.fine("Running following SQL: UPDATE Stock SET shares = "+newShares+", commission = "+newCommission+" WHERE owner = '"+portfolio.getOwner()+"' AND symbol = '"+symbol+"'");
+			stock.setShares(newShares);
+			stock.setCommission(newCommission);
+			if (newShares <= 0) closed.add(symbol);
+		}
+	}
+
+	/** Once every leg is applied: re-quotes the traded holdings (those missing from quotes keep their last price),
+	 *  updates the portfolio's stock list and total, and returns the new total */
+	public double finish(Map<String, Quote> quotes) {
+		for (String symbol : closed) {
+			Stock stock = holdings.remove(symbol);
+			portfolio.getStockList().remove(stock);
+			if (!created.remove(symbol)) deletes.add(stock); //one bought and sold off within this trade never had a row
+		}
+
+		for (String symbol : traded) {
+			Stock stock = holdings.get(symbol);
+			if (stock == null) continue; //sold off
+			requote(stock, quotes.get(symbol));
+			total += getContribution(stock);
+
+			if (created.contains(symbol)) {
+				portfolio.getStockList().add(stock);
+				inserts.add(stock);
+			}
+		}
+
+		portfolio.setTotal(total);
+		return total;
+	}
+
+	/** The new holdings, whose rows need inserting; only complete after finish */
+	public List<Stock> getInserts() {
+		return inserts;
+	}
+
+	/** The holdings sold off, whose rows need deleting; only complete after finish */
+	public List<Stock> getDeletes() {
+		return deletes;
+	}
+
+	public Portfolio getPortfolio() {
+		return portfolio;
+	}
+
+	public Set<String> getTraded() {
+		return traded;
+	}
+
+	public double getOldTotal() {
+		return oldTotal;
+	}
+
+	/** Applies a fresh stock quote, if we got one, to a holding */
+	public static void requote(Stock stock, Quote quote) {
+		if (quote != null) {
+			stock.setPrice(quote.getPrice());
+			stock.setDate(quote.getDate());
+		}
+		stock.setTotal(stock.getShares() * stock.getPrice()); //still 0 if this symbol has never been quoted
+	}
+
+	/** What this holding adds to the portfolio total; as in refreshPortfolio, holdings without a price don't count */
+	public static double getContribution(Stock stock) {
+		return ((stock != null) && (stock.getPrice() > 0)) ? stock.getTotal() : 0;
+	}
+}
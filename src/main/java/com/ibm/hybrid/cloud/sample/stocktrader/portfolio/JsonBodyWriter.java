@@ -0,0 +1,65 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.CborWriter;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.JsonWritable;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+//JAX-RS 2.1 (JSR 370)
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+
+/** Writes our JSON POJOs (and arrays of them, like the Portfolio[] from GET /) via their own writeJson methods,
+ *  rather than via reflective JSON-B.  Being an application-supplied provider, JAX-RS prefers it over the built-in
+ *  JSON-B one for these types; everything else still goes through JSON-B.  Also writes them as CBOR, for callers
+ *  that ask for application/cbor.
+ */
+@Provider
+@Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE})
+public class JsonBodyWriter implements MessageBodyWriter<Object> {
+
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return JsonWritable.class.isAssignableFrom(type) || (type.isArray() && JsonWritable.class.isAssignableFrom(type.getComponentType()));
+	}
+
+	public void writeTo(Object object, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+	                    MultivaluedMap<String, Object> headers, OutputStream stream) throws IOException {
+		try (JsonWriter writer = isCbor(mediaType) ? CborWriter.of(stream) : JsonWriter.of(stream)) {
+			if (object instanceof JsonWritable[]) {
+				writer.beginArray();
+				for (JsonWritable element : (JsonWritable[]) object) writer.value(element);
+				writer.endArray();
+			} else {
+				writer.value((JsonWritable) object);
+			}
+		}
+	}
+
+	static boolean isCbor(MediaType mediaType) {
+		return (mediaType != null) && "application".equals(mediaType.getType()) && "cbor".equals(mediaType.getSubtype());
+	}
+}
@@ -19,15 +19,29 @@ package com.ibm.hybrid.cloud.sample.stocktrader.portfolio;
 import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.client.*;
 import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.*;
 import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao.*;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.quote.QuoteFetcher;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Base64;
 import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeoutException;
 
 //Logging (JSR 47)
 import java.util.logging.Level;
@@ -50,7 +64,9 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.auth.LoginConfig;
 
 //mpMetrics 2.0
+import org.eclipse.microprofile.metrics.Counter;
 import org.eclipse.microprofile.metrics.annotation.Counted;
+import org.eclipse.microprofile.metrics.annotation.Metric;
 
 //mpOpenTracing 1.3
 import org.eclipse.microprofile.opentracing.Traced;
@@ -73,9 +89,6 @@ import javax.jms.QueueSession;
 import javax.jms.Session;
 import javax.jms.TextMessage;
 
-//JSON-P 1.1 (JSR 353).  This replaces my old usage of IBM's JSON4J (com.ibm.json.java.JSONObject)
-import javax.json.JsonObject;
-
 //JNDI 1.0
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -86,11 +99,19 @@ import javax.servlet.http.HttpServletRequest;
 //JAX-RS 2.1 (JSR 339)
 import javax.ws.rs.core.Application;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.BadRequestException; //400 error
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
@@ -114,6 +135,7 @@ public class PortfolioService extends Application {
 	private static final int    CONFLICT         = 409;         //odd that JAX-RS has no ConflictException
 	private static final short  MAX_ERRORS       = 3;           //health check will fail if this threshold is met
 	private static final String FAIL             = "FAIL";      //trying to create a portfolio with this name will always throw a 400
+	private static final int    MAX_LOGGED       = 100;         //don't dump larger lists of portfolios to the log, even at FINE
 
 	private static final String NOTIFICATION_Q   = "jms/Portfolio/NotificationQueue";
 	private static final String NOTIFICATION_QCF = "jms/Portfolio/NotificationQueueConnectionFactory";
@@ -145,7 +167,21 @@ public class PortfolioService extends Application {
 	@Inject
 	private StockDao stockDAO;
 
-	private @Inject @RestClient StockQuoteClient stockQuoteClient;
+	@Inject
+	private JdbcPortfolioDao jdbcPortfolioDAO; //optional fast path for GET /{owner}
+
+	@Inject
+	private WriteBehind writeBehind; //quote refreshes from reads are written later, in batches
+
+	@Inject
+	private GroupCommit groupCommit; //optionally, concurrent trades share one commit
+
+	@Inject
+	private QuoteFetcher quoteFetcher; //wraps the StockQuoteClient, so we can make the calls concurrently
+
+	private @Inject @Metric(name="portfolio_not_modified", absolute=true, description="Portfolio reads answered with a 304, after re-quoting") Counter notModified;
+	private @Inject @Metric(name="portfolio_not_modified_early", absolute=true, description="Portfolio reads answered with a 304 from cached quotes, without re-quoting") Counter notModifiedEarly;
+
 	private @Inject @RestClient TradeHistoryClient tradeHistoryClient;
 	private @Inject @RestClient ODMClient odmClient;
 	private @Inject @RestClient WatsonClient watsonClient;
@@ -156,6 +192,11 @@ public class PortfolioService extends Application {
 	private @Inject @ConfigProperty(name = "WATSON_PWD") String watsonPwd; //if using an API Key, it goes here
 	private @Inject @ConfigProperty(name = "KAFKA_TOPIC", defaultValue = "stocktrader") String kafkaTopic;
 	private @Inject @ConfigProperty(name = "KAFKA_ADDRESS", defaultValue = "") String kafkaAddress;
+	private @Inject @ConfigProperty(name = "PORTFOLIO_PAGE_SIZE", defaultValue = "500") int pageSize;
+	private @Inject @ConfigProperty(name = "PORTFOLIO_BATCH_MAX", defaultValue = "200") int maxBatchSize; //most owners POST /batch will take
+	private @Inject @ConfigProperty(name = "LOYALTY_THRESHOLDS", defaultValue = "10000,50000,100000,1000000") String loyaltyThresholds; //tier boundaries of the loyalty rule
+
+	private static double[] loyaltyTiers = null;
 
 	// Override ODM Client URL if secret is configured to provide URL
 	static {
@@ -212,13 +253,29 @@ public class PortfolioService extends Application {
 
 	@GET
 	@Path("/")
-	@Produces(MediaType.APPLICATION_JSON)
-	@Transactional
+	@Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE}) //JSON unless CBOR is preferred
+	@Transactional(TxType.SUPPORTS) //pure reads; the batch's portfolios are detached, and its refreshed values go to write-behind
 //	@RolesAllowed({"StockTrader", "StockViewer"}) //Couldn't get this to work; had to do it through the web.xml instead :(
-	public Portfolio[] getPortfolios() throws SQLException {
+	public Response getPortfolios(@QueryParam("limit") int limit, @QueryParam("after") String after, @QueryParam("stream") boolean stream,
+		@QueryParam("owner") List<String> owners, @Context UriInfo uriInfo, @Context HttpHeaders headers, @Context HttpServletRequest request) throws IOException, SQLException {
+		String mediaType = getMediaType(headers);
+		if ((owners != null) && !owners.isEmpty()) return getPortfolioBatch(owners, request, mediaType); //GET /?owner=a&owner=b
+
+		if (stream) { //write each page to the response as we go, rather than holding every portfolio in memory
+			logger.info("Streaming portfolios, "+pageSize+" at a time");
+			boolean cbor = CborWriter.MEDIA_TYPE.equals(mediaType);
+			StreamingOutput output = outputStream -> streamPortfolios(cbor ? CborWriter.of(outputStream) : JsonWriter.of(outputStream), after);
+			return Response.ok(output).type(mediaType).build();
+		}
 
-		logger.fine("Running following SQL: SELECT * FROM Portfolio");
-		List<Portfolio> portfolioList = portfolioDAO.readAllPortfolios();
+		List<Portfolio> portfolioList = null;
+		if (limit > 0) {
+			logger.fine("Running following SQL: SELECT * FROM Portfolio WHERE owner > '"+after+"' ORDER BY owner FETCH FIRST "+limit+" ROWS ONLY");
+			portfolioList = portfolioDAO.readPortfolios(after, limit);
+		} else {
+			logger.fine("Running following SQL: SELECT * FROM Portfolio");
+			portfolioList = portfolioDAO.readAllPortfolios();
+		}
 		int count = portfolioList.size();
 	
 		logger.info("Returning "+count+" portfolios");
@@ -226,7 +283,7 @@ public class PortfolioService extends Application {
 		Portfolio[] portfolios = new Portfolio[count];
 		portfolioList.toArray(portfolios);
 
-		if (logger.isLoggable(Level.FINE)) {
+		if (logger.isLoggable(Level.FINE) && (count <= MAX_LOGGED)) { //not worth building a huge string for the log
 			StringBuffer json = new StringBuffer("[");
 			for (int index=0; index<count; index++) {
 				Portfolio portfolio = portfolios[index];
@@ -237,7 +294,36 @@ public class PortfolioService extends Application {
 			logger.fine(json.toString());
 		}
 
-		return portfolios;
+		ResponseBuilder builder = Response.ok(portfolios).type(mediaType);
+		if ((limit > 0) && (count == limit)) { //there may be more, so tell the caller where the next page starts
+			String next = portfolios[count-1].getOwner();
+			builder.link(uriInfo.getRequestUriBuilder().replaceQueryParam("after", next).build(), "next");
+		}
+		return builder.build();
+	}
+
+	/** Writes a JSON array of all portfolios after the given owner, one page at a time, so memory use stays flat */
+	private void streamPortfolios(JsonWriter writer, String after) throws IOException {
+		int count = 0;
+		String cursor = after;
+		List<Portfolio> page = null;
+		try {
+			writer.beginArray();
+			do {
+				page = portfolioDAO.readPortfolios(cursor, pageSize); //each page is read in its own transaction, then let go
+				for (Portfolio portfolio : page) {
+					writer.value(portfolio);
+					count++;
+				}
+				if (!page.isEmpty()) cursor = page.get(page.size()-1).getOwner();
+				writer.flush();
+			} while (page.size() == pageSize);
+			writer.endArray();
+		} finally {
+			writer.close(); //flushes, and hands back the buffer
+		}
+
+		logger.info("Streamed "+count+" portfolios");
 	}
 
 	@POST
@@ -278,103 +364,328 @@ public class PortfolioService extends Application {
 
 	@GET
 	@Path("/{owner}")
-	@Produces(MediaType.APPLICATION_JSON)
-	@Transactional(TxType.REQUIRED) //two-phase commit (XA) across JDBC and JMS
+	@Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE}) //JSON unless CBOR is preferred
+	@Transactional(TxType.SUPPORTS) //a pure read; the refreshed values are handed to the write-behind stage
 //	@RolesAllowed({"StockTrader", "StockViewer"}) //Couldn't get this to work; had to do it through the web.xml instead :(
-	public Portfolio getPortfolio(@PathParam("owner") String owner, @Context HttpServletRequest request) throws IOException, SQLException {
-		Portfolio portfolio = getPortfolioWithoutStocks(owner); //throws a 404 if not found
+	public Response getPortfolio(@PathParam("owner") String owner, @QueryParam("fields") String fieldList, @QueryParam("fresh") @DefaultValue("true") boolean fresh,
+			@Context HttpServletRequest request, @Context Request conditions, @Context HttpHeaders headers) throws IOException, SQLException {
+		String mediaType = getMediaType(headers);
+		Set<String> fields = getFields(fieldList); //null means all of them
+		boolean holdings = Portfolio.includes(fields, "stocks");
+		boolean valued = fresh && (holdings || Portfolio.includes(fields, "total") || Portfolio.includes(fields, "loyalty")
+		                           || Portfolio.includes(fields, "nextCommission"));
+
+		Portfolio portfolio = null;
+		if (valued) {
+			portfolio = getPortfolioWithStocks(owner, true); //throws a 404 if not found; detached, so changes aren't written
+
+			if (request.getHeader("If-None-Match") != null) { //a poll; see if the caller's copy is current before re-quoting anything
+				EntityTag etag = getCachedETag(portfolio, mediaType, fields);
+				ResponseBuilder builder = (etag != null) ? conditions.evaluatePreconditions(etag) : null;
+				if (builder != null) {
+					logger.fine("Portfolio for "+owner+" not modified, according to the quote cache");
+					notModifiedEarly.inc();
+					return builder.tag(etag).header("Vary", "Accept").build();
+				}
+			}
+
+			portfolio = refreshPortfolio(portfolio, request, holdings);
+		} else { //the persisted values will do, so there's nothing to quote
+			portfolio = holdings ? getPortfolioWithStocks(owner, true) : getPortfolioSummary(owner);
+			if (holdings) for (Stock stock : portfolio.getStockList()) portfolio.addStock(stock);
+
+			int free = portfolio.getFree();
+			portfolio.setNextCommission(free>0 ? 0.0 : getCommission(portfolio.getLoyalty()));
+			logger.info("Returning persisted values for "+owner);
+		}
+
+		EntityTag etag = getETag(portfolio, mediaType, fields);
+		ResponseBuilder builder = conditions.evaluatePreconditions(etag); //a 304 if the caller already has this
+		if (builder != null) {
+			logger.fine("Portfolio for "+owner+" not modified");
+			notModified.inc();
+		} else {
+			Portfolio body = portfolio;
+			JsonWritable entity = (fields == null) ? body : writer -> body.writeJson(writer, fields); //just the fields asked for
+			builder = Response.ok(entity).type(mediaType);
+		}
+		return builder.tag(etag).header("Vary", "Accept").build();
+	}
+
+	/** The Portfolio properties named in a fields query parameter, or null (meaning all of them) if there isn't one */
+	private static Set<String> getFields(String fieldList) {
+		if ((fieldList == null) || fieldList.trim().isEmpty()) return null;
+
+		Set<String> fields = new TreeSet<String>();
+		for (String field : fieldList.split(",")) {
+			field = field.trim();
+			if (!Portfolio.PROPERTIES.contains(field)) throw new BadRequestException("Unknown portfolio field: "+field); //send back a 400
+			fields.add(field);
+		}
+		return fields;
+	}
+
+	/** Full details, as from GET /{owner}, for each of these owners, in one response.  They're a query on GET /, rather
+	 *  than a path of their own, so there's no path that could be mistaken for an owner's.  Like GET /{owner}, runs
+	 *  without a transaction of its own, so the portfolios read are detached and revaluing them writes nothing. */
+	private Response getPortfolioBatch(List<String> owners, HttpServletRequest request, String mediaType) throws IOException, SQLException {
+		Set<String> unique = new LinkedHashSet<String>(owners);
+		if (unique.size() > maxBatchSize) {
+			logger.warning("Refusing to read "+unique.size()+" portfolios in one batch; PORTFOLIO_BATCH_MAX is "+maxBatchSize);
+			throw new WebApplicationException("At most "+maxBatchSize+" portfolios can be read at once", Response.Status.REQUEST_ENTITY_TOO_LARGE);
+		}
+
+		logger.info("Reading "+unique.size()+" portfolios in a batch");
+		Map<String, Portfolio> found = new HashMap<String, Portfolio>();
+		Set<String> symbols = new HashSet<String>();
+		for (Portfolio portfolio : portfolioDAO.readPortfoliosWithStocks(unique, true)) { //one query (per shard) for them all
+			found.put(portfolio.getOwner(), portfolio);
+			for (Stock stock : portfolio.getStockList()) symbols.add(stock.getSymbol());
+		}
+
+		//one lookup for every symbol any of them holds, rather than one per portfolio
+		String jwt = request.getHeader("Authorization");
+		Map<String, Quote> quotes = quoteFetcher.getQuotes(jwt, symbols);
+
+		List<Portfolio> results = new ArrayList<Portfolio>();
+		for (String owner : unique) { //in the order asked for; owners with no portfolio are left out
+			Portfolio portfolio = found.get(owner);
+			if (portfolio != null) results.add(revaluePortfolio(portfolio, quotes, request, true));
+		}
+		logger.info("Returning "+results.size()+" of "+unique.size()+" portfolios, with "+symbols.size()+" distinct stocks");
+
+		Portfolio[] portfolios = new Portfolio[results.size()];
+		return Response.ok(results.toArray(portfolios)).type(mediaType).build();
+	}
+
+	/** CBOR if the caller prefers it to JSON, else JSON (including when any type will do) */
+	private static String getMediaType(HttpHeaders headers) {
+		for (MediaType type : headers.getAcceptableMediaTypes()) { //most preferred first
+			if (JsonBodyWriter.isCbor(type)) return CborWriter.MEDIA_TYPE;
+			if (type.isCompatible(MediaType.APPLICATION_JSON_TYPE)) break;
+		}
+		return MediaType.APPLICATION_JSON;
+	}
+
+	/** Strong ETag for a portfolio response: a hash of every value in its body (just the projected ones, if fields
+	 *  isn't null), plus its media type, so it changes whenever the body would */
+	private static EntityTag getETag(Portfolio portfolio, String mediaType, Set<String> fields) {
+		StringBuilder state = new StringBuilder(256).append(mediaType);
+		appendState(state, fields, "owner", portfolio.getOwner());
+		appendState(state, fields, "total", portfolio.getTotal());
+		appendState(state, fields, "loyalty", portfolio.getLoyalty());
+		appendState(state, fields, "balance", portfolio.getBalance());
+		appendState(state, fields, "commissions", portfolio.getCommissions());
+		appendState(state, fields, "free", portfolio.getFree());
+		appendState(state, fields, "sentiment", portfolio.getSentiment());
+		appendState(state, fields, "nextCommission", portfolio.getNextCommission());
+
+		Map<String, Stock> stocks = portfolio.getStocks();
+		if ((stocks != null) && Portfolio.includes(fields, "stocks")) for (Stock stock : stocks.values()) {
+			state.append('\0').append(stock.getSymbol()).append('\0').append(stock.getShares()).append('\0').append(stock.getCommission())
+			     .append('\0').append(stock.getPrice()).append('\0').append(stock.getTotal()).append('\0').append(stock.getDate());
+		}
+
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(state.toString().getBytes(StandardCharsets.UTF_8));
+			return new EntityTag(Base64.getUrlEncoder().withoutPadding().encodeToString(digest));
+		} catch (NoSuchAlgorithmException nsae) { //every JVM is required to support MD5
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	private static void appendState(StringBuilder state, Set<String> fields, String name, Object value) {
+		if (Portfolio.includes(fields, name)) state.append('\0').append(name).append('=').append(value);
+	}
+
+	/** The ETag refreshPortfolio's result would have, worked out from the quote cache alone, without changing the
+	 *  portfolio or calling anyone.  Returns null if that can't be known up front: a quote isn't cached and fresh,
+	 *  or the new total is in another loyalty tier than the stored one, so the ODM rule would have to be asked. */
+	private EntityTag getCachedETag(Portfolio portfolio, String mediaType, Set<String> fields) {
+		List<Stock> holdings = portfolio.getStockList();
+		List<String> symbols = new ArrayList<String>();
+		for (Stock stock : holdings) symbols.add(stock.getSymbol());
+		Map<String, Quote> quotes = quoteFetcher.getFreshQuotes(symbols);
+		if (quotes == null) return null;
+
+		int free = portfolio.getFree();
+		String loyalty = portfolio.getLoyalty();
+		Portfolio expected = new Portfolio(portfolio.getOwner(), 0.0, loyalty, portfolio.getBalance(), portfolio.getCommissions(),
+		                                   free, portfolio.getSentiment(), free>0 ? 0.0 : getCommission(loyalty));
+		double overallTotal = 0;
+		for (Stock stock : holdings) { //same arithmetic as refreshPortfolio
+			Quote quote = quotes.get(stock.getSymbol());
+			double price = quote.getPrice();
+			double total = stock.getShares() * price;
+			if (price != -1) overallTotal += total;
+			if (Portfolio.includes(fields, "stocks")) expected.addStock(new Stock(stock.getSymbol(), stock.getShares(), stock.getCommission(), price, total, quote.getDate()));
+		}
+		if (getLoyaltyTier(overallTotal) != getLoyaltyTier(portfolio.getTotal())) return null;
+
+		expected.setTotal(overallTotal);
+		return getETag(expected, mediaType, fields);
+	}
+
+	/** Re-quotes every holding of an already loaded portfolio, and updates its total and loyalty level.  The
+	 *  changes are queued for the write-behind stage, rather than written while the caller waits.  Pass holdings
+	 *  as false if the caller only wants the totals, so the "stocks" map isn't assembled. */
+	private Portfolio refreshPortfolio(Portfolio portfolio, HttpServletRequest request, boolean holdings) throws IOException, SQLException {
 		if (portfolio != null) {
-			String oldLoyalty = portfolio.getLoyalty();
-			double overallTotal = 0;
+			//call the StockQuote microservice for all of the symbols at once, rather than one at a time
+			List<String> symbols = new ArrayList<String>();
+			for (Stock stock : portfolio.getStockList()) symbols.add(stock.getSymbol());
+			String jwt = request.getHeader("Authorization");
+			Map<String, Quote> quotes = quoteFetcher.getQuotes(jwt, symbols);
 
-			logger.fine("Running following SQL: SELECT * FROM Stock WHERE owner = '"+owner+"'");
-			List<Stock> results = stockDAO.readStockByOwner(owner);
-			
-			int count = 0;
-			logger.fine("Iterating over results");
-			for (Stock stock : results) {
-				count++;
-
-				String symbol = stock.getSymbol();
-				int shares = stock.getShares();
-
-				String date = null;
-				double price = 0;
-				double total = 0;
-				try {
-					//call the StockQuote microservice to get the current price of this stock
-					logger.info("Calling stock-quote microservice for "+symbol);
-
-					String jwt = request.getHeader("Authorization");
-					Quote quote = stockQuoteClient.getStockQuote(jwt, symbol);
-
-					date = quote.getDate();
-					price = quote.getPrice();
-
-					total = shares * price;
-					
-					logger.info("Updated "+symbol+" entry for "+owner+" in Stock table");
+			revaluePortfolio(portfolio, quotes, request, holdings);
+		} else {
+			portfolio = new Portfolio(); //so we don't return null
+			logger.warning("No portfolio found to refresh"); //shouldn't get here; an exception with a 404 should be thrown instead
+		}
+
+		return portfolio;
+	}
+
+	/** The rest of refreshPortfolio, once the quotes are in hand (they may have been fetched for several portfolios at once) */
+	private Portfolio revaluePortfolio(Portfolio portfolio, Map<String, Quote> quotes, HttpServletRequest request, boolean holdings) {
+		String owner = portfolio.getOwner();
+		String oldLoyalty = portfolio.getLoyalty();
+		double oldTotal = portfolio.getTotal();
+		double overallTotal = 0;
+
+		List<Stock> results = portfolio.getStockList(); //already loaded, via a fetch join
+
+		List<Stock> refreshed = new ArrayList<Stock>(); //holdings whose price, date or total changed
+		int count = 0;
+		logger.fine("Iterating over results");
+		for (Stock stock : results) {
+			count++;
+
+			String symbol = stock.getSymbol();
+			int shares = stock.getShares();
+
+			String date = null;
+			double price = 0;
+			double total = 0;
+			Stock holding = stock;
+			Quote quote = quotes.get(symbol); //null if the lookup failed or didn't make the deadline
+			if (quote != null) {
+				date = quote.getDate();
+				price = quote.getPrice();
+
+				total = shares * price;
+
+				if ((price != stock.getPrice()) || (total != stock.getTotal()) || !Objects.equals(date, stock.getDate())) {
+					logger.info("Updating "+symbol+" entry for "+owner+" in Stock table");
 					stock.setDate(date);
 					stock.setPrice(price);
 					stock.setTotal(total);
-					stock.setPortfolio(portfolio);
+					refreshed.add(stock);
+				} else {
+					logger.fine("No change to "+symbol+" entry for "+owner+" in Stock table");
+				}
+			} else {
+				logger.warning("Unable to get fresh stock quote.  Using cached values instead");
 
-					stockDAO.updateStock(stock);
-					stockDAO.detachStock(stock);
+				holding = getCachedHolding(stock);
+				price = holding.getPrice();
+				total = holding.getTotal();
+			}
 
-				} catch (Throwable t) {
-					logger.warning("Unable to get fresh stock quote.  Using cached values instead");
-					logException(t);
+			if (price != -1) //-1 is the marker for not being able to get the stock quote.  But don't actually add that value
+				overallTotal += total;
 
-					date = stock.getDate();
-					if (date == null) {
-						Date now = new Date();
-						if (dateFormatter == null) dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
-						date = dateFormatter.format(now);
-					}
+			if (holdings) {
+				logger.info("Adding "+symbol+" to portfolio for "+owner);
+				portfolio.addStock(holding);
+			}
+		}
 
-					price = stock.getPrice();
-					if (price == 0) { //SQL returns 0 for a double if the column was null
-						price = ERROR;
-						total = ERROR;
-					} else {
-						total = shares * price;
-					}
-				}
+		logger.info("Processed "+count+" stocks for "+owner);
 
-				stock.setDate(date);
-				stock.setPrice(price);
-				stock.setTotal(total);
+		portfolio.setTotal(overallTotal);
 
-				if (price != -1) //-1 is the marker for not being able to get the stock quote.  But don't actually add that value
-					overallTotal += total;
+		String loyalty = processLoyaltyLevel(owner, overallTotal, oldLoyalty, request.getRemoteUser());
+		portfolio.setLoyalty(loyalty);
 
-				logger.info("Adding "+symbol+" to portfolio for "+owner);
-				portfolio.addStock(stock);
-			}
+		int free = portfolio.getFree();
+		portfolio.setFree(free);
+		portfolio.setNextCommission(free>0 ? 0.0 : getCommission(loyalty));
 
-			logger.info("Processed "+count+" stocks for "+owner);
+		logger.fine("Queueing "+refreshed.size()+" refreshed stocks, total and loyalty for "+owner+" for write-behind");
+		writeBehind.enqueue(portfolio, refreshed, oldTotal, oldLoyalty);
 
-			portfolio.setTotal(overallTotal);
+		logger.info("Returning "+portfolio.toString());
+		return portfolio;
+	}
 
-			String loyalty = processLoyaltyLevel(owner, overallTotal, oldLoyalty, request);
-			portfolio.setLoyalty(loyalty);
+	/** Which of the LOYALTY_THRESHOLDS this total has reached; 0 is below the first */
+	private int getLoyaltyTier(double total) {
+		if (loyaltyTiers == null) {
+			String[] thresholds = loyaltyThresholds.split(",");
+			double[] tiers = new double[thresholds.length];
+			for (int index=0; index<thresholds.length; index++) tiers[index] = Double.parseDouble(thresholds[index].trim());
+			loyaltyTiers = tiers;
+		}
 
-			int free = portfolio.getFree();
-			portfolio.setFree(free);
-			portfolio.setNextCommission(free>0 ? 0.0 : getCommission(loyalty));
+		int tier = 0;
+		for (double threshold : loyaltyTiers) {
+			if (total >= threshold) tier++;
+		}
+		return tier;
+	}
 
-			portfolioDAO.updatePortfolio(portfolio);
+	/** Reports a holding as of its last stock quote, via a copy, so these values don't get written back to the Stock table */
+	private Stock getCachedHolding(Stock stock) {
+		String date = stock.getDate();
+		if (date == null) {
+			Date now = new Date();
+			if (dateFormatter == null) dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
+			date = dateFormatter.format(now);
+		}
 
-			logger.info("Returning "+portfolio.toString());
+		int shares = stock.getShares();
+		double price = stock.getPrice();
+		double total = 0;
+		if (price == 0) { //SQL returns 0 for a double if the column was null
+			price = ERROR;
+			total = ERROR;
 		} else {
-			portfolio = new Portfolio(); //so we don't return null
-			logger.warning("No portfolio found for "+owner); //shouldn't get here; an exception with a 404 should be thrown instead
+			total = shares * price;
+		}
+
+		return new Stock(stock.getSymbol(), shares, stock.getCommission(), price, total, date);
+	}
+
+	/** Pass cached as true only for reads; anything about to change the portfolio needs the current database row */
+	private Portfolio getPortfolioWithStocks(String owner, boolean cached) throws SQLException {
+		logger.fine("Running following SQL: SELECT * FROM Portfolio LEFT OUTER JOIN Stock ON Portfolio.owner = Stock.owner WHERE Portfolio.owner = '"+owner+"'");
+
+		Portfolio portfolio = null;
+		if (cached && jdbcPortfolioDAO.isEnabled()) { //pure reads can skip JPA altogether
+			portfolio = jdbcPortfolioDAO.readPortfolioWithStocks(owner);
+		} else {
+			portfolio = portfolioDAO.readPortfolioWithStocks(owner, cached);
+		}
+
+		if (portfolio != null) {
+			logger.info("Found portfolio for "+owner+", with "+portfolio.getStockList().size()+" stocks");
+		} else {
+			throw new NotFoundException("No such portfolio: "+owner); //send back a 404
 		}
 
 		return portfolio;
 	}
 
+	/** Pure reads of just the portfolio row; use getPortfolioWithoutStocks for anything about to change it */
+	private Portfolio getPortfolioSummary(String owner) {
+		Portfolio portfolio = portfolioDAO.readPortfolio(owner);
+		if (portfolio == null) throw new NotFoundException("No such portfolio: "+owner); //send back a 404
+
+		logger.info("Found portfolio for "+owner);
+		return portfolio;
+	}
+
 	private Portfolio getPortfolioWithoutStocks(String owner) throws SQLException {
 		logger.fine("Running following SQL: SELECT * FROM Portfolio WHERE owner = '"+owner+"'");
 
@@ -393,9 +704,11 @@ public class PortfolioService extends Application {
 	@GET
 	@Path("/{owner}/returns")
 	@Produces(MediaType.TEXT_PLAIN)
+	@Transactional(TxType.SUPPORTS) //a pure read, like the nested getPortfolio call
 	public String getPortfolioReturns(@PathParam("owner") String owner, @Context HttpServletRequest request) throws IOException, SQLException {
 		logger.info("Calling get portfolio for " + owner);
-		Double portfolioValue = getPortfolio(owner, request).getTotal();
+		Portfolio portfolio = getPortfolioWithStocks(owner, true); //throws a 404 if not found
+		Double portfolioValue = refreshPortfolio(portfolio, request, false).getTotal(); //only the total is needed
 		String jwt = request.getHeader("Authorization");
 		logger.info("Getting portfolio returns for " + owner + " with portfolio value: " + portfolioValue);
 		return tradeHistoryClient.getReturns(jwt, owner, portfolioValue);
@@ -404,57 +717,130 @@ public class PortfolioService extends Application {
 	@PUT
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
-	@Transactional(TxType.REQUIRED) //two-phase commit (XA) across JDBC and JMS
+	@Transactional(TxType.REQUIRED) //two-phase commit (XA) across JDBC and JMS, unless GROUP_COMMIT_MS is set
 //	@RolesAllowed({"StockTrader"}) //Couldn't get this to work; had to do it through the web.xml instead :(
 	public Portfolio updatePortfolio(@PathParam("owner") String owner, @QueryParam("symbol") String symbol, @QueryParam("shares") int shares, @Context HttpServletRequest request) throws IOException, SQLException {
-		double commission = processCommission(owner); //throws a 404 if not found
+		return applyTrades(owner, Collections.singletonList(new Trade(symbol, shares)), request);
+	}
 
-		Stock stock = new Stock();
-		stock.setCommission(commission);
-		stock.setSymbol(symbol);
-		stock.setShares(shares);
+	@PUT
+	@Path("/{owner}/trades")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	@Transactional(TxType.REQUIRED) //every leg commits together, or none of them do
+//	@RolesAllowed({"StockTrader"}) //Couldn't get this to work; had to do it through the web.xml instead :(
+	public Portfolio updatePortfolioTrades(@PathParam("owner") String owner, List<Trade> trades, @Context HttpServletRequest request) throws IOException, SQLException {
+		if ((trades == null) || trades.isEmpty()) throw new BadRequestException("No trades given"); //send back a 400
+		if (trades.size() > maxBatchSize) {
+			logger.warning("Refusing to make "+trades.size()+" trades for "+owner+" at once; PORTFOLIO_BATCH_MAX is "+maxBatchSize);
+			throw new WebApplicationException("At most "+maxBatchSize+" trades can be made at once", Response.Status.REQUEST_ENTITY_TOO_LARGE);
+		}
+		for (Trade trade : trades) {
+			if ((trade == null) || (trade.getSymbol() == null)) throw new BadRequestException("Every trade needs a symbol"); //send back a 400
+		}
 
-		Portfolio portfolio = portfolioDAO.readEvent(owner);
-		if (portfolio != null) {
-			stock.setPortfolio(portfolio);
-		} else {
-			throw new NotFoundException("No such portfolio: "+owner); //send back a 404
+		logger.info("Making "+trades.size()+" trades for "+owner);
+		return applyTrades(owner, trades, request);
+	}
+
+	/** Applies each leg in order, as that many PUT /{owner} calls would, but with one read of the portfolio, one
+	 *  quote lookup for the traded symbols, one loyalty evaluation and one batch of Kafka messages.  Each leg still
+	 *  pays its own commission (or uses up a free trade), at the loyalty level the portfolio had going in. */
+	private Portfolio applyTrades(String owner, List<Trade> trades, HttpServletRequest request) throws IOException, SQLException {
+		writeBehind.discard(owner); //whatever a read queued was worked out from the holdings before this trade
+
+		Set<String> symbols = new LinkedHashSet<String>();
+		for (Trade trade : trades) symbols.add(trade.getSymbol());
+
+		//only the traded symbols are re-quoted; the other holdings, and their share of the total, are unchanged
+		String jwt = request.getHeader("Authorization");
+		Map<String, Quote> quotes = quoteFetcher.getQuotes(jwt, new ArrayList<String>(symbols)); //missing any lookups that failed
+
+		double[] commissions = new double[trades.size()];
+		HoldingsUpdate update = null;
+		try {
+			//with GROUP_COMMIT_MS set, this runs in a transaction shared with other trades, and returns once that commits;
+			//this request's own transaction has nothing in it yet, and GROUP_COMMIT_TIMEOUT_MS keeps the wait short of its timeout
+			update = groupCommit.submit(owner, () -> tradeHoldings(owner, trades, symbols, quotes, commissions));
+		} catch (TimeoutException te) { //the message says whether the trade might still commit
+			logger.warning(te.getMessage());
+			throw new WebApplicationException(te.getMessage(), Response.Status.SERVICE_UNAVAILABLE);
+		} catch (IOException | SQLException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) { //can't happen; tradeHoldings doesn't throw anything else
+			throw new IllegalStateException(e);
 		}
-        
-		logger.fine("Running following SQL: SELECT * FROM Stock WHERE owner = '"+owner+"' and symbol = '"+symbol+"'");
-		List<Stock> results = stockDAO.readStockByOwnerAndSymbol(owner, symbol);
-
-		if (!results.isEmpty()) { //row exists
-			stock = results.get(0);
-			int oldShares = stock.getShares();
-			double oldCommission = stock.getCommission();
-
-			int newShares = oldShares+shares;
-			double newCommission = oldCommission+commission;
-			if (newShares > 0) {
-				logger.fine("Running following SQL: UPDATE Stock SET shares = "+newShares+", commission = "+newCommission+" WHERE owner = '"+owner+"' AND symbol = '"+symbol+"'");
-				stock.setShares(newShares);
-				stock.setCommission(newCommission);
-				//getPortfolio will fill in the price, date and total
+
+		Portfolio portfolio = update.getPortfolio();
+		double overallTotal = portfolio.getTotal();
+
+		//the loyalty rule only depends on the total, so there's no need to ask it unless we've moved to another tier.  Asked
+		//here, rather than in tradeHoldings, so a slow ODM call or JMS send never holds up the other trades in a group
+		String loyalty = portfolio.getLoyalty();
+		if ((loyalty == null) || (getLoyaltyTier(overallTotal) != getLoyaltyTier(update.getOldTotal()))) {
+			String oldLoyalty = loyalty;
+			String user = request.getRemoteUser(); //logged-in user
+			if (groupCommit.isEnabled()) try { //the trade has already committed, so nothing from here on may fail it
+				loyalty = groupCommit.runAlone(() -> updateLoyalty(owner, overallTotal, oldLoyalty, user));
+			} catch (Exception e) {
+				logger.warning("Trade for "+owner+" committed, but its loyalty level could not be updated");
+				logException(e);
 			} else {
-				logger.fine("Running following SQL: DELETE FROM Stock WHERE owner = '"+owner+"' AND symbol = '"+symbol+"'");
-				stockDAO.deleteStock(stock);
+				loyalty = updateLoyalty(owner, overallTotal, oldLoyalty, user); //in this request's transaction, along with the trade
 			}
+			portfolio.setLoyalty(loyalty);
 		} else {
-			logger.fine("Running following SQL: INSERT INTO Stock (owner, symbol, shares, commission) VALUES ('"+owner+"', '"+symbol+"', "+shares+", "+commission+")");
-			stockDAO.createStock(stock);
-			//getPortfolio will fill in the price, date and total
+			logger.fine("Total for "+owner+" is still within the "+loyalty+" tier");
 		}
 
-		//getPortfolio will fill in the overall total and loyalty, and commit or rollback the transaction
-		logger.info("Refreshing portfolio for "+owner);
-		portfolio = getPortfolio(owner, request);
+		int free = portfolio.getFree();
+		portfolio.setNextCommission(free>0 ? 0.0 : getCommission(loyalty));
 
-		invokeKafka(portfolio, symbol, shares, commission);
+		invokeKafka(portfolio, trades, commissions);
 
+		logger.info("Returning "+portfolio.toString());
 		return portfolio;
 	}
 
+	/** The database side of applyTrades, which may be run again if a group commit has to be retried */
+	private HoldingsUpdate tradeHoldings(String owner, List<Trade> trades, Set<String> symbols, Map<String, Quote> quotes, double[] commissions) throws SQLException {
+		Portfolio portfolio = getPortfolioWithStocks(owner, false); //throws a 404 if not found; reused for the rest of this trade
+
+		HoldingsUpdate update = new HoldingsUpdate(portfolio);
+		for (int index=0; index<trades.size(); index++) {
+			double commission = processCommission(portfolio);
+			commissions[index] = commission;
+			update.apply(trades.get(index).getSymbol(), trades.get(index).getShares(), commission);
+		}
+
+		double oldOverallTotal = update.getOldTotal();
+		double overallTotal = update.finish(quotes); //only the traded holdings are re-quoted
+
+		for (Stock stock : update.getDeletes()) {
+			logger.fine("Running following SQL: DELETE FROM Stock WHERE owner = '"+owner+"' AND symbol = '"+stock.getSymbol()+"'");
+			stockDAO.deleteStock(stock);
+		}
+
+		for (Stock stock : update.getInserts()) {
+			logger.fine("Running following SQL: INSERT INTO Stock (owner, symbol, shares, commission, price, total, dateQuoted) VALUES ('"+owner+"', '"+stock.getSymbol()+"', "+stock.getShares()+", "+stock.getCommission()+", "+stock.getPrice()+", "+stock.getTotal()+", '"+stock.getDate()+"')");
+			stockDAO.createStock(stock);
+		}
+
+		logger.info("Total for "+owner+" changes by "+(overallTotal-oldOverallTotal)+", to "+overallTotal);
+
+		for (Stock holding : portfolio.getStockList()) {
+			String symbol = holding.getSymbol();
+			if (symbols.contains(symbol)) {
+				portfolio.addStock((quotes.get(symbol) != null) ? holding : getCachedHolding(holding));
+			} else { //as of its last quote, rather than re-quoting every holding on every trade
+				portfolio.addStock((holding.getPrice() != 0) ? holding : getCachedHolding(holding));
+			}
+		}
+
+		//the managed portfolio and the traded holdings are written when the transaction commits
+		return update;
+	}
+
 	@DELETE
 	@Path("/{owner}")
 	@Produces(MediaType.APPLICATION_JSON)
@@ -465,6 +851,7 @@ public class PortfolioService extends Application {
 
 		logger.fine("Running following SQL: DELETE FROM Portfolio WHERE owner = '"+owner+"'");
 		portfolioDAO.deletePortfolio(portfolio);
+		writeBehind.discard(owner);
 		logger.info("Successfully deleted portfolio for "+owner);
 
 		return portfolio; //maybe this method should return void instead?
@@ -473,7 +860,7 @@ public class PortfolioService extends Application {
 	@POST
 	@Path("/{owner}/feedback")
 	@Consumes(MediaType.APPLICATION_JSON)
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE}) //JSON unless CBOR is preferred
 	@Transactional
 //	@RolesAllowed({"StockTrader"}) //Couldn't get this to work; had to do it through the web.xml instead :(
 	public Feedback submitFeedback(@PathParam("owner") String owner, WatsonInput input) throws IOException, SQLException {
@@ -530,7 +917,17 @@ public class PortfolioService extends Application {
 		return feedback;
 	}
 
-	private String processLoyaltyLevel(String owner, double overallTotal, String oldLoyalty, HttpServletRequest request) {
+	/** Asks the loyalty rule for this total, and records any change, along with its JMS message, in the current transaction */
+	private String updateLoyalty(String owner, double overallTotal, String oldLoyalty, String user) {
+		String loyalty = processLoyaltyLevel(owner, overallTotal, oldLoyalty, user);
+		if (!Objects.equals(loyalty, oldLoyalty)) {
+			logger.fine("Running following SQL: UPDATE Portfolio SET loyalty = '"+loyalty+"' WHERE owner = '"+owner+"'");
+			portfolioDAO.updateLoyalty(owner, loyalty);
+		}
+		return loyalty;
+	}
+
+	private String processLoyaltyLevel(String owner, double overallTotal, String oldLoyalty, String user) {
 		String loyalty = null;
 		ODMLoyaltyRule input = new ODMLoyaltyRule(overallTotal);
 		try {
@@ -550,8 +947,7 @@ public class PortfolioService extends Application {
 
 				LoyaltyChange message = new LoyaltyChange(owner, oldLoyalty, loyalty);
 	
-				String user = request.getRemoteUser(); //logged-in user
-				if (user != null) message.setId(user);
+				if (user != null) message.setId(user); //logged-in user
 	
 				logger.info(message.toString());
 	
@@ -648,14 +1044,14 @@ public class PortfolioService extends Application {
 		logger.info("JMS Message sent successfully!");
 	}
 
-	/** Send a message to IBM Event Streams via the Kafka APIs */
-	private void invokeKafka(Portfolio portfolio, String symbol, int shares, double commission) {
+	/** Send a StockPurchase message for each leg of a trade to IBM Event Streams via the Kafka APIs, in one batch */
+	private void invokeKafka(Portfolio portfolio, List<Trade> trades, double[] commissions) {
 		if ((kafkaAddress == null) || kafkaAddress.isEmpty()) {
 			logger.info("IBM Event Streams not configured, so not sending Kafka message about this stock trade");
 			return; //only do the following if Kafka is configured
 		}
 
-		logger.info("Preparing to send a Kafka message");
+		logger.info("Preparing to send "+trades.size()+" Kafka messages");
 
 		try {
 			if (kafkaProducer == null) kafkaProducer = new EventStreamsProducer(kafkaAddress, kafkaTopic);
@@ -663,38 +1059,39 @@ public class PortfolioService extends Application {
 			Date now = new Date();
 			if (timestampFormatter == null) timestampFormatter = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss.SSS");
 			String when = timestampFormatter.format(now);
-	
-			double price = -1;
+
 			String owner = portfolio.getOwner();
-			JsonObject stocks = portfolio.getStocks();
-
-			if ((stocks != null) &&
-			    (stocks.getJsonObject(symbol) != null) &&
-			    (stocks.getJsonObject(symbol).getJsonNumber("price") != null)) { //rather than calling stock-quote again, get it from the portfolio we just built
-				JsonObject stock = stocks.getJsonObject(symbol);
-				logger.info("Stock price for "+symbol+": " + stock.getJsonNumber("price"));
-				price = stock.getJsonNumber("price").doubleValue();
-			} else {
-				logger.warning("Unable to get the stock price.  Skipping sending the StockPurchase to Kafka");
-				return; //nothing to send if we can't look up the stock price
+			List<String> messages = new ArrayList<String>();
+			for (int index=0; index<trades.size(); index++) {
+				String symbol = trades.get(index).getSymbol();
+				Stock stock = portfolio.getStock(symbol);
+
+				double price = -1;
+				if (stock != null) { //rather than calling stock-quote again, get it from the portfolio we just built
+					price = stock.getPrice();
+					logger.info("Stock price for "+symbol+": " + price);
+				} else {
+					logger.warning("Unable to get the stock price of "+symbol+".  Skipping sending its StockPurchase to Kafka");
+					continue; //nothing to send if we can't look up the stock price
+				}
+
+				String tradeID = UUID.randomUUID().toString();
+				StockPurchase purchase = new StockPurchase(tradeID, owner, symbol, trades.get(index).getShares(), price, when, commissions[index]);
+				messages.add(purchase.toString());
 			}
-	
-			String tradeID = UUID.randomUUID().toString();
-			StockPurchase purchase = new StockPurchase(tradeID, owner, symbol, shares, price, when, commission);
-			String message = purchase.toString();
-	
-			kafkaProducer.produce(message); //publish the serialized JSON to our Kafka topic in IBM Event Streams
-			logger.info("Delivered message to Kafka: "+message);
+			if (messages.isEmpty()) return;
+
+			kafkaProducer.produce(messages); //publish the serialized JSON to our Kafka topic in IBM Event Streams
+			logger.info("Delivered "+messages.size()+" messages to Kafka: "+messages);
 		} catch (Throwable t) {
 			logger.warning("Failure sending message to Kafka");
 			logException(t);
 		} 
 	}
 
-	private double processCommission(String owner) throws SQLException {
+	private double processCommission(Portfolio portfolio) throws SQLException {
+		String owner = portfolio.getOwner();
 		logger.info("Getting loyalty level for "+owner);
-		Portfolio portfolio = getPortfolioWithoutStocks(owner); //throws a 404 if not found
-		portfolioDAO.updatePortfolio(portfolio);
 		String loyalty = portfolio.getLoyalty();
 	
 		double commission = getCommission(loyalty);
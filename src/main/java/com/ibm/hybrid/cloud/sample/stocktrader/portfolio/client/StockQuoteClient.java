@@ -17,6 +17,7 @@
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.client;
 
 import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Quote;
+import java.util.concurrent.CompletionStage;
 import javax.enterprise.context.Dependent;
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.GET;
@@ -41,4 +42,15 @@ public interface StockQuoteClient {
 	@Path("/{symbol}")
 	@Produces("application/json")
 	public Quote getStockQuote(@HeaderParam("Authorization") String jwt, @PathParam("symbol") String symbol);
+
+	//asynchronous variants of the above, run on whatever executor the client was built with
+	@GET
+	@Path("/")
+	@Produces("application/json")
+	public CompletionStage<Quote[]> getAllCachedQuotesAsync(@HeaderParam("Authorization") String jwt);
+
+	@GET
+	@Path("/{symbol}")
+	@Produces("application/json")
+	public CompletionStage<Quote> getStockQuoteAsync(@HeaderParam("Authorization") String jwt, @PathParam("symbol") String symbol);
 }
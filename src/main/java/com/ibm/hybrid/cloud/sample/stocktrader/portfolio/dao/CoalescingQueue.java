@@ -0,0 +1,94 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/** The queueing half of WriteBehind, kept apart from the database so it can be tested on its own.  Pending values
+ *  are keyed (by owner), so later updates for a key just change what's pending for it.  A flush hands everything
+ *  pending to the writer in one go; only one runs at a time, and a caller that finds one running waits for it to
+ *  finish and then writes whatever was queued in the meantime, rather than returning with that still pending.
+ */
+public class CoalescingQueue<K, V> {
+    private final Supplier<V> factory;
+    private final Consumer<Map<K, V>> writer;
+    private final Executor executor;
+
+    //pending values, in the order their keys were first queued; swapped out whole by each flush
+    private final Object lock = new Object();
+    private Map<K, V> pending = new LinkedHashMap<K, V>();
+
+    private final Object flushing = new Object(); //held while the writer runs
+
+    /** The writer is given each batch, and must not throw; flushAndWait runs it on the executor */
+    public CoalescingQueue(Supplier<V> factory, Consumer<Map<K, V>> writer, Executor executor) {
+        this.factory = factory;
+        this.writer = writer;
+        this.executor = executor;
+    }
+
+    /** Applies the update to the value pending for this key, creating one first if there isn't one.  Returns true if
+     *  there already was, meaning this update was coalesced with an earlier one. */
+    public boolean update(K key, Consumer<V> update) {
+        synchronized (lock) {
+            V value = pending.get(key);
+            boolean existed = (value != null);
+            if (!existed) {
+                value = factory.get();
+                pending.put(key, value);
+            }
+            update.accept(value);
+            return existed;
+        }
+    }
+
+    public void remove(K key) {
+        synchronized (lock) {
+            pending.remove(key);
+        }
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /** Writes everything pending, in this thread.  If a flush is already running, waits for it first. */
+    public void flush() {
+        synchronized (flushing) {
+            Map<K, V> batch = null;
+            synchronized (lock) {
+                if (pending.isEmpty()) return;
+                batch = pending;
+                pending = new LinkedHashMap<K, V>();
+            }
+            writer.accept(batch);
+        }
+    }
+
+    /** Like flush, but in one of the executor's threads, for callers that can't write themselves (such as ones
+     *  running under @Transactional, where UserTransaction can't be used).  Returns once it's done. */
+    public void flushAndWait() {
+        CompletableFuture.runAsync(this::flush, executor).join();
+    }
+}
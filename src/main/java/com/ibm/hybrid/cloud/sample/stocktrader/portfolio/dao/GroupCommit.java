@@ -0,0 +1,168 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.annotation.Metric;
+
+/** Group-commit stage for trades.  Rather than each trade committing its own transaction, the database work of
+ *  concurrent trades is collected for up to GROUP_COMMIT_MS milliseconds (or until GROUP_COMMIT_BATCH are waiting),
+ *  then run one after another in a single transaction (per shard), so they share one commit.  Each caller blocks
+ *  until that commit, and gets back its own result.  If a trade throws, only its caller gets the exception, and the
+ *  others are run again without it; if the commit itself fails, they are retried one transaction each, so every
+ *  caller learns whether its own trade made it.  Callers wait at most GROUP_COMMIT_TIMEOUT_MS for that.  The
+ *  batching itself is in GroupCommitQueue.  Off by default, in which case the work runs in the caller's own
+ *  transaction, as before.  Whatever a trade does after its group has committed goes through runAlone, in a
+ *  transaction of its own, so it can no longer commit or roll back along with the trade.
+ */
+@ApplicationScoped
+public class GroupCommit {
+    private static Logger logger = Logger.getLogger(GroupCommit.class.getName());
+
+    @Inject @ConfigProperty(name = "GROUP_COMMIT_MS", defaultValue = "0")
+    private long window; //0 commits each trade in its caller's transaction, as before
+
+    @Inject @ConfigProperty(name = "GROUP_COMMIT_BATCH", defaultValue = "64")
+    private int batchSize; //commit early once this many trades are waiting
+
+    @Inject @ConfigProperty(name = "GROUP_COMMIT_TIMEOUT_MS", defaultValue = "30000")
+    private long timeout; //how long a trade waits for its group; keep it well within the transaction timeout
+
+    @Inject @Metric(name="group_commits", absolute=true, description="Transactions committed by the group-commit stage")
+    private Counter commits;
+
+    @Inject @Metric(name="group_commit_trades", absolute=true, description="Trades committed by the group-commit stage")
+    private Counter trades;
+
+    @Inject @Metric(name="group_commit_retries", absolute=true, description="Groups that failed to commit and were retried one trade at a time")
+    private Counter retries;
+
+    @Inject
+    private ShardRouter shardRouter;
+
+    @Inject
+    private PortfolioDao portfolioDAO;
+
+    @Resource
+    private ManagedScheduledExecutorService scheduler;
+
+    @Resource
+    private UserTransaction transaction;
+
+    private GroupCommitQueue queue = null;
+
+    @PostConstruct
+    void initialize() {
+        if (isEnabled()) {
+            queue = new GroupCommitQueue(new JtaTransactions(), shardRouter::partition, scheduler, window, batchSize, timeout);
+            logger.info("Committing trades in groups, every "+window+" ms or "+batchSize+" trades");
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (queue != null) queue.shutdown(); //nothing would commit the trades still waiting
+    }
+
+    public boolean isEnabled() {
+        return window > 0;
+    }
+
+    /** Runs this owner's database work in a transaction shared with other concurrent trades, and returns its result
+     *  once that has committed.  The work may be run more than once (after a rollback), so it should read what it
+     *  changes, and leave calls to other services to the caller. */
+    public <T> T submit(String owner, Callable<T> work) throws Exception {
+        if (!isEnabled()) return work.call(); //in the caller's transaction
+        return queue.submit(owner, work);
+    }
+
+    /** Runs this in a transaction of its own, on the scheduler's thread, and returns its result once that has
+     *  committed.  For a trade's follow-up work once its group has committed: the caller's transaction can't be
+     *  used for it, since a failure there would report a trade that has already committed as failed. */
+    public <T> T runAlone(Callable<T> work) throws Exception {
+        CompletableFuture<T> done = new CompletableFuture<T>();
+        scheduler.execute(() -> {
+            try {
+                transaction.begin();
+                T result = work.call();
+                transaction.commit();
+                done.complete(result);
+            } catch (Throwable t) {
+                try {
+                    if (transaction.getStatus() != Status.STATUS_NO_TRANSACTION) transaction.rollback();
+                } catch (Throwable t2) {
+                    logger.warning("Unable to roll back: "+t2.getMessage());
+                }
+                done.completeExceptionally(t);
+            }
+        });
+
+        try {
+            return done.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ee) { //rethrow what the work (or the commit) threw
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw ee;
+        }
+    }
+
+    /** Each group's transaction, begun on the scheduler's thread; the DAOs join it */
+    private class JtaTransactions implements GroupCommitQueue.Transactions {
+        public void begin() throws Exception {
+            transaction.begin();
+        }
+
+        public void flush(String owner) throws Exception {
+            portfolioDAO.flush(Collections.singleton(owner)); //the owner's portfolio and holdings are in the same shard
+        }
+
+        public void commit() throws Exception {
+            transaction.commit();
+        }
+
+        public void rollback() throws Exception {
+            if (transaction.getStatus() != Status.STATUS_NO_TRANSACTION) transaction.rollback();
+        }
+
+        public void committed(int count) {
+            commits.inc();
+            trades.inc(count);
+        }
+
+        public void retrying(int count) {
+            retries.inc();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** The batching half of GroupCommit, kept apart from JTA and JPA so it can be tested on its own.  Trades for
+ *  different owners share a transaction (one per shard), but an owner's second trade waits for the next one, since
+ *  two trades in one persistence context would change, and both report, the same managed portfolio.  Each trade's
+ *  changes are flushed as soon as it has run, so a database error fails the trade that caused it, not a later one.
+ *  Callers wait at most the given timeout, and any still waiting when the queue is shut down are failed.
+ */
+public class GroupCommitQueue {
+    private static Logger logger = Logger.getLogger(GroupCommitQueue.class.getName());
+
+    /** What the queue needs from the database, and where it reports what it committed */
+    public interface Transactions {
+        void begin() throws Exception;
+
+        /** Writes out this owner's changes so far, in the current transaction */
+        void flush(String owner) throws Exception;
+
+        void commit() throws Exception;
+
+        /** Rolls back the current transaction, if there is one */
+        void rollback() throws Exception;
+
+        /** Called after each commit, with the number of trades in it */
+        default void committed(int trades) {
+        }
+
+        /** Called when a group fails to commit, before its trades are retried one at a time */
+        default void retrying(int trades) {
+        }
+    }
+
+    private final Transactions transactions;
+    private final Function<Collection<String>, Map<String, List<String>>> partitioner;
+    private final ScheduledExecutorService scheduler;
+    private final long window;
+    private final int batchSize;
+    private final long timeout;
+
+    //trades waiting for the next commit; swapped out whole by each commit, so guarded by a separate lock
+    private final Object lock = new Object();
+    private List<Pending<?>> pending = new ArrayList<Pending<?>>();
+    private boolean scheduled = false;
+    private boolean closed = false;
+
+    private final Object committing = new Object(); //one batch commits at a time, while the next one gathers
+
+    /** The partitioner groups owners by shard, as ShardRouter.partition does; commits run on the scheduler */
+    public GroupCommitQueue(Transactions transactions, Function<Collection<String>, Map<String, List<String>>> partitioner,
+                            ScheduledExecutorService scheduler, long window, int batchSize, long timeout) {
+        this.transactions = transactions;
+        this.partitioner = partitioner;
+        this.scheduler = scheduler;
+        this.window = window;
+        this.batchSize = batchSize;
+        this.timeout = timeout;
+    }
+
+    /** Runs this owner's work in a transaction shared with other trades, and returns its result once that has
+     *  committed.  The work may be run more than once (after a rollback), so it should read what it changes, and
+     *  leave calls to other services to the caller.  Throws a TimeoutException if that takes longer than the timeout;
+     *  the work may still commit afterwards if it had already started, as the exception's message says. */
+    public <T> T submit(String owner, Callable<T> work) throws Exception {
+        Pending<T> trade = new Pending<T>(owner, work);
+        boolean full = false;
+        boolean schedule = false;
+        synchronized (lock) {
+            if (closed) throw new IllegalStateException("Group commit has been shut down");
+            pending.add(trade);
+            full = pending.size() >= batchSize;
+            schedule = !full && !scheduled;
+            if (schedule) scheduled = true;
+        }
+
+        try {
+            if (full) {
+                scheduler.execute(this::commit);
+            } else if (schedule) {
+                scheduler.schedule(this::commit, window, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException ree) { //the scheduler is shutting down, so nothing would commit this
+            withdraw(trade);
+            throw ree;
+        }
+
+        try {
+            return trade.done.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            if (withdraw(trade)) throw new TimeoutException("Trade for "+owner+" was not run within "+timeout+" ms");
+            throw new TimeoutException("Trade for "+owner+" did not commit within "+timeout+" ms, but may yet");
+        } catch (ExecutionException ee) { //rethrow what the work (or the commit) threw, so the caller sees its own 404s and such
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw ee;
+        }
+    }
+
+    /** Takes this trade back out of the queue, if it's still there; returns whether it was, meaning it will never run */
+    private boolean withdraw(Pending<?> trade) {
+        synchronized (lock) {
+            return pending.remove(trade);
+        }
+    }
+
+    /** Fails every trade still waiting for a commit, and any submitted from now on.  A group already committing is
+     *  left to finish, so its callers still learn how it went. */
+    public void shutdown() {
+        List<Pending<?>> abandoned = null;
+        synchronized (lock) {
+            closed = true;
+            abandoned = pending;
+            pending = new ArrayList<Pending<?>>();
+        }
+
+        if (!abandoned.isEmpty()) logger.warning("Failing "+abandoned.size()+" trades that were waiting for a group commit");
+        for (Pending<?> trade : abandoned) trade.done.completeExceptionally(new IllegalStateException("Group commit has been shut down"));
+    }
+
+    /** How many trades are waiting for the next commit */
+    public int size() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /** Commits everything waiting so far, in as few transactions as it can without putting two trades for the same
+     *  owner in one, or spanning shards (which would need two-phase commit) */
+    public void commit() {
+        List<Pending<?>> batch = null;
+        synchronized (lock) {
+            scheduled = false;
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new ArrayList<Pending<?>>();
+        }
+
+        synchronized (committing) {
+            //each owner's first trade goes in the first round, its second in the next, and so on, keeping their order
+            List<Map<String, Pending<?>>> rounds = new ArrayList<Map<String, Pending<?>>>();
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (Pending<?> trade : batch) {
+                int round = counts.merge(trade.owner, 1, Integer::sum) - 1;
+                if (round == rounds.size()) rounds.add(new LinkedHashMap<String, Pending<?>>());
+                rounds.get(round).put(trade.owner, trade);
+            }
+
+            for (Map<String, Pending<?>> round : rounds) {
+                for (List<String> owners : partitioner.apply(round.keySet()).values()) {
+                    List<Pending<?>> group = new ArrayList<Pending<?>>();
+                    for (String owner : owners) group.add(round.get(owner));
+                    commitGroup(group);
+                }
+            }
+        }
+    }
+
+    private void commitGroup(List<Pending<?>> group) {
+        while (!group.isEmpty()) {
+            Pending<?> current = null;
+            try {
+                transactions.begin();
+                for (Pending<?> trade : group) {
+                    current = trade;
+                    trade.run();
+                    transactions.flush(trade.owner); //so whatever this trade breaks fails it, rather than the next one
+                }
+                current = null;
+                transactions.commit();
+            } catch (Throwable t) {
+                rollback();
+                if (current != null) { //that trade's own failure; the rest go again without it
+                    logger.info("Trade for "+current.owner+" failed in a group of "+group.size()+"; retrying the others");
+                    current.done.completeExceptionally(t);
+                    group.remove(current);
+                    continue;
+                }
+
+                logger.warning("Unable to commit a group of "+group.size()+" trades; committing them one at a time instead");
+                logException(t);
+                transactions.retrying(group.size());
+                for (Pending<?> trade : group) commitAlone(trade);
+                return;
+            }
+
+            transactions.committed(group.size());
+            logger.fine("Committed a group of "+group.size()+" trades");
+            for (Pending<?> trade : group) trade.complete();
+            return;
+        }
+    }
+
+    private void commitAlone(Pending<?> trade) {
+        try {
+            transactions.begin();
+            trade.run();
+            transactions.commit();
+            transactions.committed(1);
+            trade.complete();
+        } catch (Throwable t) {
+            rollback();
+            trade.done.completeExceptionally(t);
+        }
+    }
+
+    private void rollback() {
+        try {
+            transactions.rollback();
+        } catch (Throwable t) {
+            logException(t);
+        }
+    }
+
+    private static void logException(Throwable t) {
+        logger.warning(t.getClass().getName()+": "+t.getMessage());
+
+        //only log the stack trace if the level has been set to at least INFO
+        if (logger.isLoggable(Level.INFO)) {
+            StringWriter writer = new StringWriter();
+            t.printStackTrace(new PrintWriter(writer));
+            logger.info(writer.toString());
+        }
+    }
+
+    /** One caller's work, and where its result goes once the group it ran in has committed */
+    private static class Pending<T> {
+        final String owner;
+        final Callable<T> work;
+        final CompletableFuture<T> done = new CompletableFuture<T>();
+        T result = null;
+
+        Pending(String owner, Callable<T> work) {
+            this.owner = owner;
+            this.work = work;
+        }
+
+        void run() throws Exception {
+            result = work.call();
+        }
+
+        void complete() {
+            done.complete(result);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.annotation.Timed;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Stock;
+
+/** Read-only fast path for GET /{owner}: one prepared statement through the pooled PortfolioDB dataSource, with
+ *  the rows mapped straight into plain Portfolio and Stock objects.  Nothing is managed, so there's no persistence
+ *  context, change tracking or merge to pay for; the objects are the same detached kind the JPA read path returns.
+ *  Selected with PORTFOLIO_READ_PATH=jdbc (the default is jpa).
+ */
+@ApplicationScoped
+public class JdbcPortfolioDao {
+    private static Logger logger = Logger.getLogger(JdbcPortfolioDao.class.getName());
+
+    private static final String SELECT_WITH_STOCKS =
+        "SELECT p.owner, p.total, p.loyalty, p.balance, p.commissions, p.free, p.sentiment, "+
+        "s.symbol, s.shares, s.commission, s.price, s.total, s.dateQuoted "+
+        "FROM Portfolio p LEFT OUTER JOIN Stock s ON p.owner = s.owner WHERE p.owner = ?";
+
+    @Inject @ConfigProperty(name = "PORTFOLIO_READ_PATH", defaultValue = "jpa")
+    private String readPath;
+
+    @Inject
+    private ShardRouter shardRouter;
+
+    @Resource(lookup = "jdbc/Portfolio/PortfolioDB") //the same pooled dataSource PortfolioService.staticInitialize looks up
+    private DataSource datasource;
+
+    /** True if GET /{owner} should read through here; the JPA path is still used when portfolios are sharded */
+    public boolean isEnabled() {
+        return "jdbc".equalsIgnoreCase(readPath) && !shardRouter.isSharded();
+    }
+
+    /** Returns the portfolio and its holdings (in its stockList), or null if there's no such portfolio */
+    @Timed(name="portfolio_read_jdbc", absolute=true, description="Time to read a portfolio and its stocks via plain JDBC")
+    public Portfolio readPortfolioWithStocks(String owner) throws SQLException {
+        Portfolio portfolio = null;
+        try (Connection connection = datasource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_WITH_STOCKS)) {
+            statement.setString(1, owner);
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    if (portfolio == null) {
+                        portfolio = new Portfolio(results.getString(1), results.getDouble(2), results.getString(3), results.getDouble(4),
+                                                  results.getDouble(5), results.getInt(6), results.getString(7), 0.0);
+                    }
+
+                    String symbol = results.getString(8);
+                    if (symbol == null) continue; //the outer join's row for a portfolio with no stocks
+
+                    Stock stock = new Stock(symbol, results.getInt(9), results.getDouble(10), results.getDouble(11),
+                                            results.getDouble(12), results.getString(13));
+                    stock.setPortfolio(portfolio);
+                    portfolio.getStockList().add(stock);
+                }
+            }
+        }
+
+        if (portfolio != null) logger.fine("Read portfolio for "+owner+", with "+portfolio.getStockList().size()+" stocks, via JDBC");
+        return portfolio;
+    }
+}
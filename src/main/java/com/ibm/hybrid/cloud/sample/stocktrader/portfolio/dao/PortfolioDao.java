@@ -16,76 +16,244 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
 
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.CacheStoreMode;
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.eclipse.microprofile.metrics.annotation.Metric;
+import org.eclipse.microprofile.metrics.annotation.Timed;
+
 import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
 
+@ApplicationScoped
+@Transactional //joins the caller's JTA transaction (one commit per request), or runs in its own if there isn't one
 public class PortfolioDao {
-    
-    private EntityManager em = null;
-    private static EntityManagerFactory emFactoryObj;
 
+    private static final String RETRIEVE_MODE = "javax.persistence.cache.retrieveMode";
+    private static final String STORE_MODE    = "javax.persistence.cache.storeMode";
+    private static final String CACHE_USAGE   = "eclipselink.cache-usage";
+    private static final String BATCH         = "eclipselink.batch";
+    private static final String BATCH_TYPE    = "eclipselink.batch.type";
+
+    private static final Comparator<Portfolio> BY_OWNER = Comparator.comparing(Portfolio::getOwner); //to merge what each shard returns
+
+    //read from the database, and refresh the second-level cache with what we find
+    private static final Map<String, Object> BYPASS_CACHE = new HashMap<String, Object>();
     static {
-           emFactoryObj = createEntityManagerFactory();
-    }
-       
-    public static EntityManagerFactory createEntityManagerFactory() {
-        String JDBC_URL = 
-               "jdbc:db2://" + System.getenv("JDBC_HOST") + ":" + 
-               System.getenv("JDBC_PORT") + "/" + System.getenv("JDBC_DB");
-        Map properties = new HashMap();
-        properties.put("javax.persistence.jdbc.driver", "com.ibm.db2.jcc.DB2Driver");
-        properties.put("javax.persistence.jdbc.url", JDBC_URL);
-        properties.put("javax.persistence.jdbc.user", System.getenv("JDBC_ID"));
-        properties.put("javax.persistence.jdbc.password", System.getenv("JDBC_PASSWORD"));
-        return Persistence.createEntityManagerFactory("jpa-unit", properties);           
-    }
-  
+        BYPASS_CACHE.put(RETRIEVE_MODE, CacheRetrieveMode.BYPASS);
+        BYPASS_CACHE.put(STORE_MODE, CacheStoreMode.REFRESH);
+    }
+
+    private @Inject @Metric(name="portfolio_cache_hits", absolute=true, description="Portfolio reads served from the second-level cache") Counter hits;
+    private @Inject @Metric(name="portfolio_cache_misses", absolute=true, description="Portfolio reads that had to go to the database") Counter misses;
+
+    //transaction-scoped and thread-safe; each JTA transaction gets its own persistence context, backed by
+    //the container's shared jpa-unit factory and the pooled jdbc/Portfolio/PortfolioDB dataSource
+    @PersistenceContext(unitName = "jpa-unit")
+    private EntityManager em;
+
+    @Inject
+    private ReplicaRouter replicaRouter; //sends the read-only queries to a read replica, if there is one
+
+    @Inject
+    private ShardRouter shardRouter; //picks the database for each owner, if portfolios are sharded
+
+    public PortfolioDao() { //used by CDI, which injects everything
+    }
+
+    /** For use outside the container, with portfolios sharded by this router and no read replica */
+    public PortfolioDao(ShardRouter shardRouter) {
+        this.shardRouter = shardRouter;
+        replicaRouter = new ReplicaRouter();
+    }
+
     // This Method Is Used To Retrieve The 'EntityManager' Object
     public EntityManager getEntityManager() {
-        if (em == null) {
-              if (emFactoryObj == null)
-                     emFactoryObj = emFactoryObj = createEntityManagerFactory();
-              em = emFactoryObj.createEntityManager();
-        }
-        return em ;
+        return em;
+    }
+
+    /** The EntityManager for this owner's shard, or the usual one if portfolios aren't sharded */
+    public EntityManager getEntityManager(String owner) {
+        return shardRouter.isSharded() ? shardRouter.getEntityManager(owner) : em;
     }
 
     public void createPortfolio(Portfolio portfolio) {
-        EntityManager em = getEntityManager();
-        em.getTransaction().begin();
+        EntityManager em = getEntityManager(portfolio.getOwner());
+        replicaRouter.written(portfolio.getOwner());
         em.persist(portfolio);
-        em.getTransaction().commit();         
     }
 
+    /** Always reads the current row from the primary database (refreshing the second-level cache), since the caller
+     *  is about to change it, and the cache could be behind writes made by other instances of this service */
     public Portfolio readEvent(String owner) {
-        EntityManager em = getEntityManager();
-        return em.find(Portfolio.class, owner);
+        EntityManager em = getEntityManager(owner);
+        replicaRouter.written(owner); //read-your-writes: keep this owner's reads on the primary for a while
+        return em.find(Portfolio.class, owner, BYPASS_CACHE);
+    }
+
+    /** Just the portfolio row, for reads that don't need its stocks: from the second-level cache if it's there,
+     *  else via the read replica when there is one */
+    public Portfolio readPortfolio(String owner) {
+        EntityManager em = getEntityManager(owner);
+        if (em.getEntityManagerFactory().getCache().contains(Portfolio.class, owner)) {
+            hits.inc();
+            return em.find(Portfolio.class, owner);
+        }
+        misses.inc();
+        return replicaRouter.read(owner, em, replica -> replica.find(Portfolio.class, owner));
+    }
+
+    /** Loads the portfolio and all of its holdings (its stockList) in a single query.  If cached is true, a portfolio
+     *  in the second-level cache is used without going to the database for the Portfolio row, and a miss may be read
+     *  from the read replica; otherwise the primary is read and the cache refreshed, as the caller is going to change
+     *  the portfolio */
+    @Timed(name="portfolio_read_jpa", absolute=true, description="Time to read a portfolio and its stocks via JPA")
+    public Portfolio readPortfolioWithStocks(String owner, boolean cached) {
+        EntityManager em = getEntityManager(owner);
+        List<Portfolio> results = null;
+        if (cached) {
+            if (em.getEntityManagerFactory().getCache().contains(Portfolio.class, owner)) {
+                hits.inc();
+                results = findByOwnerWithStocks(em, owner).setHint(CACHE_USAGE, "CheckCacheByExactPrimaryKey").getResultList();
+            } else {
+                misses.inc();
+                results = replicaRouter.read(owner, em, replica -> findByOwnerWithStocks(replica, owner).getResultList());
+            }
+        } else {
+            replicaRouter.written(owner); //read-your-writes: keep this owner's reads on the primary for a while
+            results = findByOwnerWithStocks(em, owner)
+                .setHint(RETRIEVE_MODE, CacheRetrieveMode.BYPASS).setHint(STORE_MODE, CacheStoreMode.REFRESH).getResultList();
+        }
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    private TypedQuery<Portfolio> findByOwnerWithStocks(EntityManager em, String owner) {
+        return em.createNamedQuery("Portfolio.findByOwnerWithStocks", Portfolio.class).setParameter("owner", owner);
+    }
+
+    /** Loads these owners' portfolios and holdings in a single query (per shard).  As for a single owner, pass cached
+     *  as true only for reads (which may then go to the read replica); otherwise they come straight from the database.
+     *  Only joins a transaction the caller already has, so a read of several shards doesn't need one spanning them. */
+    @Transactional(TxType.SUPPORTS)
+    public List<Portfolio> readPortfoliosWithStocks(Collection<String> owners, boolean cached) {
+        List<Portfolio> portfolios = new ArrayList<Portfolio>();
+        for (List<String> partition : shardRouter.partition(owners).values()) {
+            EntityManager em = getEntityManager(partition.get(0));
+            if (cached) {
+                portfolios.addAll(replicaRouter.readOwners(partition, em, replica -> findByOwnersWithStocks(replica, partition).getResultList()));
+            } else {
+                portfolios.addAll(findByOwnersWithStocks(em, partition)
+                    .setHint(RETRIEVE_MODE, CacheRetrieveMode.BYPASS)
+                    .setHint(STORE_MODE, CacheStoreMode.REFRESH)
+                    .getResultList());
+            }
+        }
+        return portfolios;
+    }
+
+    /** Like readPortfoliosWithStocks, straight from the database, but locking the rows read (SELECT ... FOR UPDATE)
+     *  until the caller's transaction ends, so nothing can change them between this read and its writes.  These
+     *  owners must all be in one shard, which the caller's transaction is then using. */
+    public List<Portfolio> lockPortfoliosWithStocks(List<String> owners) {
+        EntityManager em = getEntityManager(owners.get(0));
+        return findByOwnersWithStocks(em, owners)
+            .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+            .setHint(RETRIEVE_MODE, CacheRetrieveMode.BYPASS)
+            .setHint(STORE_MODE, CacheStoreMode.REFRESH)
+            .getResultList();
+    }
+
+    private TypedQuery<Portfolio> findByOwnersWithStocks(EntityManager em, List<String> owners) {
+        return em.createNamedQuery("Portfolio.findByOwnersWithStocks", Portfolio.class).setParameter("owners", owners);
     }
 
     public void updatePortfolio(Portfolio portfolio) {
-        EntityManager em = getEntityManager();
-        em.getTransaction().begin();
+        EntityManager em = getEntityManager(portfolio.getOwner());
+        replicaRouter.written(portfolio.getOwner());
         em.merge(portfolio);
-        em.flush();
-        em.getTransaction().commit();
+    }
+
+    /** Sets just this owner's loyalty level, rather than merging a detached portfolio that a later trade may have changed */
+    public void updateLoyalty(String owner, String loyalty) {
+        EntityManager em = getEntityManager(owner);
+        Portfolio portfolio = em.find(Portfolio.class, owner);
+        if (portfolio != null) {
+            replicaRouter.written(owner);
+            portfolio.setLoyalty(loyalty);
+        }
     }
 
     public void deletePortfolio(Portfolio portfolio) {
-        EntityManager em = getEntityManager();
-        em.getTransaction().begin();
+        EntityManager em = getEntityManager(portfolio.getOwner());
+        replicaRouter.written(portfolio.getOwner());
         em.remove(em.merge(portfolio));
-        em.getTransaction().commit();
+        evict(portfolio.getOwner());
+    }
+
+    /** Writes out the changes made to these owners' managed portfolios and holdings so far, as one JDBC batch per shard */
+    public void flush(Collection<String> owners) {
+        for (List<String> partition : shardRouter.partition(owners).values()) {
+            getEntityManager(partition.get(0)).flush();
+        }
+    }
+
+    /** Drops this owner's portfolio from the second-level cache, so the next read goes to the database */
+    public void evict(String owner) {
+        getEntityManager(owner).getEntityManagerFactory().getCache().evict(Portfolio.class, owner);
     }
 
+    @Gauge(name="portfolio_cache_hit_ratio", absolute=true, unit=MetricUnits.PERCENT, description="Percentage of portfolio reads served from the second-level cache")
+    public double getCacheHitRatio() {
+        long total = hits.getCount() + misses.getCount();
+        return (total > 0) ? (100.0 * hits.getCount() / total) : 0.0;
+    }
+
+    //if anyone touches the holdings of the portfolios read by these two, they're loaded for the whole
+    //result with one SELECT ... WHERE owner IN (...), rather than one query per portfolio
     public List<Portfolio> readAllPortfolios() {
+        if (shardRouter.isSharded()) { //gather every shard's portfolios, in owner order
+            List<Portfolio> portfolios = shardRouter.scatter(shard -> shard.createNamedQuery("Portfolio.findAll", Portfolio.class).getResultList());
+            portfolios.sort(BY_OWNER);
+            return portfolios;
+        }
+
+        EntityManager em = getEntityManager();
+        return replicaRouter.read(null, em, reader -> reader.createNamedQuery("Portfolio.findAll", Portfolio.class)
+            .setHint(BATCH, "p.stockList").setHint(BATCH_TYPE, "IN").getResultList());
+    }
+
+    /** Keyset pagination: reads up to limit portfolios in owner order, starting just after the given owner
+     *  (or from the beginning if it's null).  The last owner returned is the cursor for the next page. */
+    public List<Portfolio> readPortfolios(String after, int limit) {
+        if (shardRouter.isSharded()) { //each shard's first page, merged; the first limit of those are the overall first page
+            List<Portfolio> portfolios = shardRouter.scatter(shard -> shard.createNamedQuery("Portfolio.findAfter", Portfolio.class)
+                .setParameter("after", (after != null) ? after : "")
+                .setMaxResults(limit).getResultList());
+            portfolios.sort(BY_OWNER);
+            return (portfolios.size() > limit) ? new ArrayList<Portfolio>(portfolios.subList(0, limit)) : portfolios;
+        }
+
         EntityManager em = getEntityManager();
-        return em.createNamedQuery("Portfolio.findAll", Portfolio.class).getResultList();
+        return replicaRouter.read(null, em, reader -> reader.createNamedQuery("Portfolio.findAfter", Portfolio.class)
+            .setParameter("after", (after != null) ? after : "")
+            .setHint(BATCH, "p.stockList").setHint(BATCH_TYPE, "IN")
+            .setMaxResults(limit).getResultList());
     }
 
 }
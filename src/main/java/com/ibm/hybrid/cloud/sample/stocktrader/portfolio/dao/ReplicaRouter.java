@@ -0,0 +1,190 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.annotation.Metric;
+
+/** Optionally sends read-only queries to a read replica of the Portfolio database, so reads can scale out
+ *  without growing the primary.  The replica is a second dataSource (READ_REPLICA_JNDI), used through the
+ *  same jpa-unit mappings, but with its own resource-local, uncached factory.  For READ_REPLICA_STALENESS_MS
+ *  after an owner's portfolio is written, that owner's reads stay on the primary, so a trade is always
+ *  followed by a read that sees it.  If the replica fails, the query is retried on the primary.  The recent
+ *  writes are only tracked per server, though, so that read-your-writes only holds for reads that reach the
+ *  server that took the write; behind a load balancer, use session affinity, or leave the replica off.
+ */
+@ApplicationScoped
+public class ReplicaRouter {
+    private static Logger logger = Logger.getLogger(ReplicaRouter.class.getName());
+
+    private static final int MAX_TRACKED = 10000; //prune the recent writers once there are this many
+
+    @Inject @ConfigProperty(name = "READ_REPLICA_JNDI", defaultValue = "")
+    private String replicaJndi; //empty sends everything to the primary
+
+    @Inject @ConfigProperty(name = "READ_REPLICA_STALENESS_MS", defaultValue = "5000")
+    private long staleness; //how far behind the primary we assume the replica may be
+
+    @Inject @Metric(name="replica_reads", absolute=true, description="Read-only queries sent to the read replica")
+    private Counter reads;
+
+    @Inject @Metric(name="replica_fallbacks", absolute=true, description="Read-only queries retried on the primary after the read replica failed")
+    private Counter fallbacks;
+
+    @Inject
+    private ShardRouter shardRouter;
+
+    private EntityManagerFactory replica = null;
+
+    //when each recently written owner was last written (on this server only), in terms of the clock
+    private final ConcurrentHashMap<String, Long> lastWritten = new ConcurrentHashMap<String, Long>();
+    private LongSupplier clock = System::currentTimeMillis;
+
+    public ReplicaRouter() { //used by CDI, which injects the settings and metrics
+    }
+
+    /** For use outside of CDI, as by ReplicaRouterTest, with the given replica and clock, and the metrics kept locally */
+    public ReplicaRouter(EntityManagerFactory replica, long staleness, LongSupplier clock) {
+        this.replica = replica;
+        this.staleness = staleness;
+        this.clock = clock;
+        reads = new LocalCounter();
+        fallbacks = new LocalCounter();
+    }
+
+    @PostConstruct
+    void initialize() {
+        if ((replicaJndi == null) || replicaJndi.isEmpty()) return;
+        if (shardRouter.isSharded()) { //one replica can't stand in for several shards
+            logger.warning("READ_REPLICA_JNDI is ignored when PORTFOLIO_SHARDS is set");
+            return;
+        }
+
+        Map<String, Object> overrides = new HashMap<String, Object>();
+        overrides.put("javax.persistence.transactionType", "RESOURCE_LOCAL");
+        overrides.put("javax.persistence.jtaDataSource", "");
+        overrides.put("javax.persistence.nonJtaDataSource", replicaJndi);
+        overrides.put("eclipselink.cache.shared.default", "false"); //the replica's own lag is staleness enough
+        overrides.put("eclipselink.ddl-generation", "none"); //never create tables on a replica
+
+        try {
+            replica = Persistence.createEntityManagerFactory("jpa-unit", overrides);
+            logger.info("Sending read-only queries to the read replica at "+replicaJndi+", except within "+staleness+" ms of a write");
+        } catch (PersistenceException pe) {
+            logger.warning("Unable to use the read replica at "+replicaJndi+".  Sending all queries to the primary.");
+            logger.warning(pe.getClass().getName()+": "+pe.getMessage());
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (replica != null) replica.close();
+    }
+
+    /** Records that this owner's portfolio has been (or is about to be) written */
+    public void written(String owner) {
+        if (replica == null) return;
+
+        long now = clock.getAsLong();
+        lastWritten.put(owner, now);
+        if (lastWritten.size() > MAX_TRACKED) {
+            lastWritten.values().removeIf(when -> now - when > staleness);
+        }
+    }
+
+    /** Runs the query on the replica, unless there isn't one or this owner was written too recently for the
+     *  replica to have caught up, in which case it runs on the primary.  Pass a null owner for queries that
+     *  span owners, which tolerate the replica's staleness. */
+    public <T> T read(String owner, EntityManager primary, Function<EntityManager, T> query) {
+        return isReplicaFor(owner) ? readReplica(primary, query) : query.apply(primary);
+    }
+
+    /** As above, for a query of several owners' portfolios; it only goes to the replica if none of them was
+     *  written too recently */
+    public <T> T readOwners(Collection<String> owners, EntityManager primary, Function<EntityManager, T> query) {
+        boolean useReplica = (replica != null);
+        for (String owner : owners) {
+            if (!useReplica) break;
+            useReplica = isReplicaFor(owner);
+        }
+        return useReplica ? readReplica(primary, query) : query.apply(primary);
+    }
+
+    private <T> T readReplica(EntityManager primary, Function<EntityManager, T> query) {
+        EntityManager em = replica.createEntityManager();
+        try {
+            reads.inc();
+            return query.apply(em);
+        } catch (PersistenceException pe) {
+            logger.warning("Read replica query failed; retrying on the primary");
+            logger.warning(pe.getClass().getName()+": "+pe.getMessage());
+            fallbacks.inc();
+            return query.apply(primary);
+        } finally {
+            em.close();
+        }
+    }
+
+    private boolean isReplicaFor(String owner) {
+        if (replica == null) return false;
+        if (owner == null) return true;
+
+        Long when = lastWritten.get(owner);
+        if (when == null) return true;
+        if (clock.getAsLong() - when > staleness) {
+            lastWritten.remove(owner, when);
+            return true;
+        }
+        logger.fine("Reading "+owner+" from the primary, since it was written within the last "+staleness+" ms");
+        return false;
+    }
+
+    private static class LocalCounter implements Counter {
+        private final AtomicLong count = new AtomicLong();
+
+        public void inc() {
+            count.incrementAndGet();
+        }
+
+        public void inc(long n) {
+            count.addAndGet(n);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Consistent-hash ring mapping portfolio owners to shards.  Each shard is placed on the ring at many points
+ *  (virtual nodes), and an owner belongs to the first shard at or after its own hash.  Adding a shard to N
+ *  existing ones therefore only moves about 1/(N+1) of the owners, all of them to the new shard.  The hash is
+ *  MD5, so every instance of this service (and every restart) maps an owner to the same shard.
+ */
+public class ShardRing {
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    private final List<String> shards;
+
+    public ShardRing(Collection<String> shardNames, int virtualNodes) {
+        if (shardNames.isEmpty()) throw new IllegalArgumentException("At least one shard is required");
+
+        shards = Collections.unmodifiableList(new ArrayList<String>(shardNames));
+        for (String shard : shards) {
+            for (int node=0; node<virtualNodes; node++) {
+                ring.put(hash(shard+"#"+node), shard);
+            }
+        }
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    public String getShard(String owner) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(owner));
+        if (entry == null) entry = ring.firstEntry(); //wrap around
+        return entry.getValue();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int index=0; index<8; index++) hash = (hash << 8) | (digest[index] & 0xff);
+            return hash;
+        } catch (NoSuchAlgorithmException nsae) { //every JVM is required to support MD5
+            throw new IllegalStateException(nsae);
+        }
+    }
+}
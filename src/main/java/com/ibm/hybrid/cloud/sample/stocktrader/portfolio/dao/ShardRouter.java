@@ -0,0 +1,166 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/** Optionally spreads portfolios (and their holdings) across several databases, by a consistent hash of the
+ *  owner (see ShardRing).  PORTFOLIO_SHARDS lists the shards' persistence contexts, by the names web.xml gives
+ *  them; each is a container-managed one for its own persistence unit and JTA dataSource (see persistence.xml),
+ *  so it joins the caller's transaction just as the usual jpa-unit one does.  Queries for one owner go to that
+ *  owner's shard; queries across owners are run on every shard in parallel, and the results gathered.  A
+ *  transaction that wrote to two shards would need two-phase commit, so unless PORTFOLIO_SHARDS_XA says their
+ *  dataSources are XA, using a second shard in one transaction fails instead.  With no shards configured,
+ *  everything uses the container's jpa-unit.
+ */
+@ApplicationScoped
+public class ShardRouter {
+    private static Logger logger = Logger.getLogger(ShardRouter.class.getName());
+
+    private static final String SHARD_KEY = ShardRouter.class.getName()+":shard"; //the shard a transaction has used
+
+    @Inject @ConfigProperty(name = "PORTFOLIO_SHARDS", defaultValue = "")
+    private String shardList; //comma-separated persistence-context-ref names, such as persistence/Shard0,persistence/Shard1
+
+    @Inject @ConfigProperty(name = "PORTFOLIO_SHARD_VNODES", defaultValue = "100")
+    private int virtualNodes; //points on the ring per shard; more gives a more even spread
+
+    @Inject @ConfigProperty(name = "PORTFOLIO_SHARDS_XA", defaultValue = "false")
+    private boolean xa; //whether the shards' dataSources can share a transaction
+
+    @Resource
+    private TransactionSynchronizationRegistry registry;
+
+    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
+    private ExecutorService executor;
+
+    private ShardRing ring = null;
+    private final Map<String, EntityManager> shards = new LinkedHashMap<String, EntityManager>();
+
+    public ShardRouter() { //used by CDI, which injects the settings and resources
+    }
+
+    /** For use outside the container: routes to these EntityManagers, keyed by shard name, with no transaction checks */
+    public ShardRouter(Map<String, EntityManager> shards, int virtualNodes, ExecutorService executor) {
+        this.shards.putAll(shards);
+        this.virtualNodes = virtualNodes;
+        this.executor = executor;
+        ring = new ShardRing(new ArrayList<String>(shards.keySet()), virtualNodes);
+    }
+
+    @PostConstruct
+    void initialize() {
+        if ((shardList == null) || shardList.trim().isEmpty()) return;
+
+        try {
+            InitialContext context = new InitialContext();
+            for (String shard : shardList.split(",")) {
+                shard = shard.trim();
+                if (!shard.isEmpty()) shards.put(shard, (EntityManager) context.lookup("java:comp/env/"+shard));
+            }
+        } catch (NamingException ne) {
+            throw new IllegalStateException("Unable to look up the persistence contexts in PORTFOLIO_SHARDS: "+shardList, ne);
+        }
+
+        ring = new ShardRing(new ArrayList<String>(shards.keySet()), virtualNodes);
+        logger.info("Sharding portfolios across "+shards.size()+" persistence units: "+shards.keySet()+(xa ? ", with XA" : ""));
+    }
+
+    public boolean isSharded() {
+        return ring != null;
+    }
+
+    public String getShard(String owner) {
+        return ring.getShard(owner);
+    }
+
+    /** Returns the container-managed EntityManager for this owner's shard, which joins the current transaction if
+     *  there is one.  Throws IllegalStateException if that transaction has already used another shard, unless they
+     *  can share it via XA. */
+    public EntityManager getEntityManager(String owner) {
+        String shard = getShard(owner);
+        if ((registry != null) && !xa && (registry.getTransactionKey() != null)) {
+            String used = (String) registry.getResource(SHARD_KEY);
+            if (used == null) {
+                registry.putResource(SHARD_KEY, shard);
+            } else if (!used.equals(shard)) {
+                throw new IllegalStateException("A transaction that has used shard "+used+" can't also use "+shard
+                    +" without two-phase commit; set PORTFOLIO_SHARDS_XA=true if their dataSources are XA");
+            }
+        }
+        return shards.get(shard);
+    }
+
+    /** Groups these owners by shard */
+    public Map<String, List<String>> partition(Collection<String> owners) {
+        Map<String, List<String>> partitions = new LinkedHashMap<String, List<String>>();
+        for (String owner : owners) {
+            String shard = isSharded() ? getShard(owner) : "";
+            List<String> partition = partitions.get(shard);
+            if (partition == null) {
+                partition = new ArrayList<String>();
+                partitions.put(shard, partition);
+            }
+            partition.add(owner);
+        }
+        return partitions;
+    }
+
+    /** Runs this read-only query on every shard at once, and returns all of the results.  Fails if any shard does,
+     *  rather than silently returning a partial result. */
+    public <T> List<T> scatter(Function<EntityManager, List<T>> query) {
+        List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+        for (EntityManager shard : shards.values()) {
+            futures.add(executor.submit(() -> query.apply(shard))); //outside any transaction, so the results are detached
+        }
+
+        List<T> results = new ArrayList<T>();
+        try {
+            for (Future<List<T>> future : futures) results.addAll(future.get());
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            throw (cause instanceof PersistenceException) ? (PersistenceException) cause : new PersistenceException(cause);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException(ie);
+        } finally {
+            for (Future<List<T>> future : futures) future.cancel(true); //no-op for those already done
+        }
+        return results;
+    }
+}
@@ -17,88 +17,46 @@
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
 
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import javax.persistence.PersistenceContext;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.transaction.Transactional;
 
 import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Stock;
 
+@ApplicationScoped
+@Transactional //joins the caller's JTA transaction (one commit per request), or runs in its own if there isn't one
 public class StockDao {
- 
-    private EntityManager em = null;
-    private static EntityManagerFactory emFactoryObj;
 
-    static {
-           emFactoryObj = createEntityManagerFactory();
-    }
-       
-    public static EntityManagerFactory createEntityManagerFactory() {
-        String JDBC_URL = 
-               "jdbc:db2://" + System.getenv("JDBC_HOST") + ":" + 
-               System.getenv("JDBC_PORT") + "/" + System.getenv("JDBC_DB");
-        Map properties = new HashMap();
-        properties.put("javax.persistence.jdbc.driver", "com.ibm.db2.jcc.DB2Driver");
-        properties.put("javax.persistence.jdbc.url", JDBC_URL);
-        properties.put("javax.persistence.jdbc.user", System.getenv("JDBC_ID"));
-        properties.put("javax.persistence.jdbc.password", System.getenv("JDBC_PASSWORD"));
-        return Persistence.createEntityManagerFactory("jpa-unit", properties);           
-    }
-        
+    //transaction-scoped and thread-safe; each JTA transaction gets its own persistence context, backed by
+    //the container's shared jpa-unit factory and the pooled jdbc/Portfolio/PortfolioDB dataSource
+    @PersistenceContext(unitName = "jpa-unit")
+    private EntityManager em;
+
+    @Inject
+    private ShardRouter shardRouter; //picks the database for each owner, if portfolios are sharded
+
     // This Method Is Used To Retrieve The 'EntityManager' Object
     public EntityManager getEntityManager() {
-        if (em == null) {
-              if (emFactoryObj == null)
-                     emFactoryObj = emFactoryObj = createEntityManagerFactory();
-              em = emFactoryObj.createEntityManager();
-        }
-        return em ;
+        return em;
     }
-       
-    public void createStock(Stock stock) {
-        EntityManager em = getEntityManager();
-        em.getTransaction().begin();
-        em.persist(stock);
-        em.getTransaction().commit();
+
+    /** The EntityManager for this owner's shard (holdings live with their portfolio), or the usual one if not sharded */
+    public EntityManager getEntityManager(String owner) {
+        return shardRouter.isSharded() ? shardRouter.getEntityManager(owner) : em;
     }
 
-    public Stock readEvent(String symbol) {
-        EntityManager em = getEntityManager();
-        return em.find(Stock.class, symbol);
+    private EntityManager getEntityManager(Stock stock) {
+        return getEntityManager(stock.getId().getOwner());
     }
 
-    public void updateStock(Stock stock) {
-        EntityManager em = getEntityManager();
-        em.getTransaction().begin();
-        em.merge(stock);
-        em.flush();
-        em.getTransaction().commit();
+    public void createStock(Stock stock) {
+        EntityManager em = getEntityManager(stock);
+        em.persist(stock);
     }
 
     public void deleteStock(Stock stock) {
-        EntityManager em = getEntityManager();
-        em.getTransaction().begin();
+        EntityManager em = getEntityManager(stock);
         em.remove(em.merge((stock)));
-        em.getTransaction().commit();
-    }
-
-    public void detachStock(Stock stock) {
-        EntityManager em = getEntityManager();
-        em.getTransaction().begin();
-        em.detach(stock);
-        em.getTransaction().commit();
-    }
-
-    public List<Stock> readStockByOwner(String owner) {
-        EntityManager em = getEntityManager();
-        return em.createNamedQuery("Stock.findByOwner", Stock.class)
-            .setParameter("owner", owner).getResultList();
-    }
-    public List<Stock> readStockByOwnerAndSymbol(String owner, String symbol) {
-        EntityManager em = getEntityManager();
-        return em.createNamedQuery("Stock.findByOwnerAndSymbol", Stock.class)
-            .setParameter("owner", owner)
-            .setParameter("symbol", symbol).getResultList();
     }
 }
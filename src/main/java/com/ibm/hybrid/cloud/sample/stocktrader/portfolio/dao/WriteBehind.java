@@ -0,0 +1,253 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Quote;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Stock;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.eclipse.microprofile.metrics.annotation.Metric;
+
+/** Write-behind stage for the prices, totals and loyalty levels that GET /{owner} works out from fresh stock quotes.
+ *  Rather than writing them while the caller waits, they are queued here, keyed by owner and then by symbol, so
+ *  repeated reads of the same portfolio just replace the pending values.  The queue is written out as one
+ *  transaction (and one JDBC batch) on a timer, or sooner once enough owners are pending, and drained at shutdown.
+ *  Flushes always run on the managed scheduler's threads (or at shutdown), never in the caller's, since the
+ *  callers are @Transactional and so can't use UserTransaction themselves.  Trades don't come through here;
+ *  they write synchronously, and discard whatever is pending (or being written) for their owner.  A flush locks
+ *  the rows it reads, so a trade committing in the meantime waits for it rather than being overwritten, and only
+ *  writes a loyalty level if the row's loyalty and holdings are still the ones it was worked out from.
+ */
+@ApplicationScoped
+public class WriteBehind {
+    private static Logger logger = Logger.getLogger(WriteBehind.class.getName());
+
+    @Inject @ConfigProperty(name = "WRITE_BEHIND_MS", defaultValue = "1000")
+    private long interval; //0 writes through, with the caller waiting for it
+
+    @Inject @ConfigProperty(name = "WRITE_BEHIND_BATCH", defaultValue = "500")
+    private int batchSize; //flush early once this many owners are pending
+
+    @Inject @ConfigProperty(name = "WRITE_BEHIND_MAX_PENDING", defaultValue = "10000")
+    private int maxPending; //past this, the caller waits for the queue to be flushed, which throttles it
+
+    @Inject @Metric(name="write_behind_queued", absolute=true, description="Quote refreshes queued for write-behind")
+    private Counter queued;
+
+    @Inject @Metric(name="write_behind_coalesced", absolute=true, description="Queued quote refreshes replaced by a later one for the same owner")
+    private Counter coalesced;
+
+    @Inject @Metric(name="write_behind_flushes", absolute=true, description="Batches written by the write-behind stage")
+    private Counter flushes;
+
+    @Inject
+    private PortfolioDao portfolioDAO;
+
+    @Inject
+    private ShardRouter shardRouter;
+
+    @Resource
+    private ManagedScheduledExecutorService scheduler;
+
+    @Resource
+    private UserTransaction transaction;
+
+    private CoalescingQueue<String, Refresh> pending = null; //keyed by owner
+    private volatile Map<String, Refresh> writing = null; //the batch being written, if any; flushes run one at a time
+    private ScheduledFuture<?> timer = null;
+
+    @PostConstruct
+    void initialize() {
+        pending = new CoalescingQueue<String, Refresh>(Refresh::new, this::write, scheduler);
+        if (isEnabled()) {
+            timer = scheduler.scheduleWithFixedDelay(pending::flush, interval, interval, TimeUnit.MILLISECONDS);
+            logger.info("Writing quote refreshes behind, every "+interval+" ms or "+batchSize+" portfolios");
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (timer != null) timer.cancel(false);
+        logger.info("Draining write-behind queue");
+        pending.flush(); //don't lose what's still pending; waits for any flush already running
+    }
+
+    public boolean isEnabled() {
+        return interval > 0;
+    }
+
+    /** Queues the refreshed holdings, total and loyalty level of this portfolio, unless none of them changed.  Only
+     *  the quote-derived values are kept; they are applied to the current rows when the queue is flushed, so shares
+     *  bought or sold in the meantime are respected.  The old total and loyalty are what the read started from. */
+    public void enqueue(Portfolio portfolio, List<Stock> refreshed, double oldTotal, String oldLoyalty) {
+        if (refreshed.isEmpty() && (portfolio.getTotal() == oldTotal) && Objects.equals(portfolio.getLoyalty(), oldLoyalty)) {
+            logger.fine("Nothing to write back for "+portfolio.getOwner());
+            return;
+        }
+
+        boolean replaced = pending.update(portfolio.getOwner(), refresh -> {
+            for (Stock stock : refreshed) {
+                refresh.quotes.put(stock.getSymbol(), new Quote(stock.getSymbol(), stock.getPrice(), stock.getDate()));
+            }
+            refresh.total = portfolio.getTotal();
+            refresh.oldLoyalty = oldLoyalty;
+            refresh.loyalty = portfolio.getLoyalty();
+        });
+        if (replaced) coalesced.inc();
+        queued.inc();
+
+        int size = pending.size();
+        if (!isEnabled() || (size >= maxPending)) {
+            pending.flushAndWait(); //write through, or wait for the backlog to be written
+        } else if (size >= batchSize) {
+            scheduler.execute(pending::flush);
+        }
+    }
+
+    /** Drops anything pending for this owner, or being written but not yet applied; called when a trade is about to
+     *  write fresher values itself */
+    public void discard(String owner) {
+        pending.remove(owner);
+
+        Map<String, Refresh> batch = writing;
+        Refresh refresh = (batch != null) ? batch.get(owner) : null;
+        if (refresh != null) refresh.discarded = true; //checked once its rows are locked
+    }
+
+    /** Writes a batch taken from the queue, in one transaction per shard, so a flush never needs two-phase commit
+     *  across databases.  Runs in the scheduler's threads (or at shutdown), so it's free to use UserTransaction. */
+    private void write(Map<String, Refresh> batch) {
+        writing = batch;
+        try {
+            writePartitions(batch);
+        } finally {
+            writing = null;
+        }
+    }
+
+    private void writePartitions(Map<String, Refresh> batch) {
+        for (List<String> owners : shardRouter.partition(batch.keySet()).values()) {
+            Map<String, Refresh> partition = new LinkedHashMap<String, Refresh>();
+            for (String owner : owners) partition.put(owner, batch.get(owner));
+
+            try {
+                transaction.begin();
+                apply(partition);
+                transaction.commit();
+                flushes.inc();
+                logger.fine("Wrote quote refreshes for "+partition.size()+" portfolios");
+            } catch (Throwable t) {
+                logger.warning("Unable to write quote refreshes for "+partition.size()+" portfolios; they will be recomputed on the next read");
+                logException(t);
+                try {
+                    if (transaction.getStatus() != Status.STATUS_NO_TRANSACTION) transaction.rollback();
+                } catch (Throwable t2) {
+                    logException(t2);
+                }
+            }
+        }
+    }
+
+    /** Applies the queued values to freshly read rows, locked until the commit; the DAO's flush sends the UPDATEs as
+     *  one JDBC batch.  The batch is all in one shard. */
+    private void apply(Map<String, Refresh> batch) {
+        List<Portfolio> portfolios = portfolioDAO.lockPortfoliosWithStocks(new ArrayList<String>(batch.keySet()));
+        for (Portfolio portfolio : portfolios) { //portfolios deleted in the meantime just aren't found
+            Refresh refresh = batch.get(portfolio.getOwner());
+            if (refresh.discarded) { //a trade for this owner has started, and will write its own values
+                logger.fine("Skipping quote refresh for "+portfolio.getOwner()+", discarded by a trade");
+                continue;
+            }
+
+            double overallTotal = 0;
+            for (Stock stock : portfolio.getStockList()) {
+                Quote quote = refresh.quotes.get(stock.getSymbol());
+                if (quote != null) {
+                    stock.setPrice(quote.getPrice());
+                    stock.setDate(quote.getDate());
+                    stock.setTotal(stock.getShares() * quote.getPrice());
+                }
+                if (stock.getPrice() > 0) overallTotal += stock.getTotal(); //same as the read, which skips unquoted stocks
+            }
+
+            portfolio.setTotal(overallTotal);
+
+            //the loyalty level was worked out from the total at read time, so it's only still right if nothing has
+            //changed the holdings (which would change the total) or the loyalty level since
+            if (!Objects.equals(refresh.loyalty, portfolio.getLoyalty())) {
+                if (Objects.equals(refresh.oldLoyalty, portfolio.getLoyalty()) && (Math.abs(overallTotal - refresh.total) < 0.01)) {
+                    portfolio.setLoyalty(refresh.loyalty);
+                } else {
+                    logger.fine("Not writing loyalty level for "+portfolio.getOwner()+", as it was worked out from an older portfolio");
+                }
+            }
+        }
+        portfolioDAO.flush(batch.keySet());
+    }
+
+    @Gauge(name="write_behind_pending", absolute=true, unit=MetricUnits.NONE, description="Portfolios with quote refreshes waiting to be written")
+    public int getPending() {
+        return pending.size();
+    }
+
+    private static void logException(Throwable t) {
+        logger.warning(t.getClass().getName()+": "+t.getMessage());
+
+        //only log the stack trace if the level has been set to at least INFO
+        if (logger.isLoggable(Level.INFO)) {
+            StringWriter writer = new StringWriter();
+            t.printStackTrace(new PrintWriter(writer));
+            logger.info(writer.toString());
+        }
+    }
+
+    /** What a read worked out for one owner: the latest price and date per symbol, and the total and loyalty level
+     *  (along with the loyalty level the read started from) */
+    private static class Refresh {
+        final Map<String, Quote> quotes = new HashMap<String, Quote>();
+        double total = 0;
+        String oldLoyalty = null;
+        String loyalty = null;
+        volatile boolean discarded = false; //set by a trade once this has been taken for writing
+    }
+}
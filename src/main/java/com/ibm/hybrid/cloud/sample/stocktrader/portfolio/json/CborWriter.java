@@ -0,0 +1,160 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Writes the same structures as JsonWriter, via the same writeJson methods, but as CBOR (RFC 7049): the JSON data
+ *  model in binary.  Objects and arrays are indefinite-length, so nothing needs counting up front; strings are
+ *  length-prefixed UTF-8 with no escaping, and doubles that a float holds exactly are written in 4 bytes, not 8.
+ */
+public class CborWriter extends JsonWriter {
+    public static final String MEDIA_TYPE = "application/cbor";
+
+    private static final int UNSIGNED = 0x00;
+    private static final int NEGATIVE = 0x20;
+    private static final int TEXT     = 0x60;
+    private static final int ARRAY    = 0x80;
+    private static final int MAP      = 0xa0;
+    private static final int INDEFINITE = 0x1f;
+    private static final int FLOAT32  = 0xfa;
+    private static final int FLOAT64  = 0xfb;
+    private static final int NULL     = 0xf6;
+    private static final int BREAK    = 0xff;
+
+    CborWriter(OutputStream out) {
+        super(out);
+    }
+
+    /** Returns a writer for the given stream.  Call close() when done, which flushes it; the stream itself is left open. */
+    public static CborWriter of(OutputStream out) {
+        return new CborWriter(out);
+    }
+
+    /** Serializes a single object to CBOR */
+    public static byte[] toCbor(JsonWritable object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (CborWriter writer = new CborWriter(bytes)) {
+            object.writeJson(writer);
+        } catch (IOException ioe) { //can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException(ioe);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+        write(MAP | INDEFINITE);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+        write(BREAK);
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+        write(ARRAY | INDEFINITE);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+        write(BREAK);
+        return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) throws IOException {
+        return value(name);
+    }
+
+    @Override
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) {
+            write(NULL);
+        } else {
+            header(TEXT, utf8Length(value));
+            writeUtf8(value);
+        }
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) { //not valid in the JSON form either
+            throw new NumberFormatException("JSON cannot represent "+value);
+        }
+        float single = (float) value;
+        if (single == value) {
+            write(FLOAT32);
+            bytes(Float.floatToIntBits(single), 4);
+        } else {
+            write(FLOAT64);
+            bytes(Double.doubleToLongBits(value), 8);
+        }
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) throws IOException {
+        if (value >= 0) {
+            header(UNSIGNED, value);
+        } else {
+            header(NEGATIVE, -1 - value);
+        }
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(JsonWritable value) throws IOException {
+        if (value == null) {
+            write(NULL);
+        } else {
+            value.writeJson(this);
+        }
+        return this;
+    }
+
+    /** A major type and its argument, in the fewest bytes that hold it */
+    private void header(int majorType, long argument) throws IOException {
+        if (argument < 24) {
+            write(majorType | (int) argument);
+        } else if (argument < 0x100) {
+            write(majorType | 24);
+            bytes(argument, 1);
+        } else if (argument < 0x10000) {
+            write(majorType | 25);
+            bytes(argument, 2);
+        } else if (argument < 0x100000000L) {
+            write(majorType | 26);
+            bytes(argument, 4);
+        } else {
+            write(majorType | 27);
+            bytes(argument, 8);
+        }
+    }
+
+    /** The low count bytes of value, most significant first */
+    private void bytes(long value, int count) throws IOException {
+        for (int shift=(count-1)*8; shift>=0; shift-=8) write((int) (value >>> shift) & 0xff);
+    }
+}
@@ -16,8 +16,10 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.io.IOException;
+
 /** JSON-B POJO class representing a Feedback JSON object */
-public class Feedback {
+public class Feedback implements JsonWritable {
     private String message;
     private int free;
     private String sentiment;
@@ -60,7 +62,16 @@ public class Feedback {
         sentiment = newSentiment;
     }
 
+    /** Same output as JSON-B: properties in lexicographical order, with nulls omitted */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("free").value(free);
+        if (message != null) writer.name("message").value(message);
+        if (sentiment != null) writer.name("sentiment").value(sentiment);
+        writer.endObject();
+    }
+
     public String toString() {
-        return "{\"message\": \""+message+"\", \"free\": "+free+", \"sentiment\": \""+sentiment+"\"}";
+        return JsonWriter.toJson(this);
     }
 }
@@ -0,0 +1,27 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
+
+import java.io.IOException;
+
+/** Implemented by the POJOs we send, so they can be serialized without reflection (see JsonWriter and JsonBodyWriter).
+ *  Properties must come out exactly as JSON-B would write them, including its order and its omission of nulls,
+ *  unless the class's own toString already defines the wire format (as for the Kafka and JMS payloads).
+ */
+public interface JsonWritable {
+    void writeJson(JsonWriter writer) throws IOException;
+}
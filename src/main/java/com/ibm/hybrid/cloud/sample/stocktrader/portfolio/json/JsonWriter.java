@@ -0,0 +1,265 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/** Minimal streaming JSON writer, for the hand-written serializers of our JSON POJOs (see JsonWritable).  It encodes
+ *  UTF-8 straight into its byte buffer, and hands that to the output stream whenever it fills, so there's no
+ *  reflection and nothing allocated per property.  Each response gets its own writer, but the buffer is borrowed
+ *  from one kept per thread, and handed back by close().  Only the byte array is kept, so nothing is left holding
+ *  on to the stream (or, across a redeploy, this class) afterwards.  The output is compact, and numbers and escaping
+ *  follow JSON-P's JsonGenerator, so it matches what JSON-B produced for the same objects.
+ */
+public class JsonWriter implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_DEPTH = 32;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    //each thread's spare buffer, if it has one; a plain byte[], so it can't pin this class's loader
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>();
+
+    private byte[] buffer = borrow();
+    private final boolean[] first = new boolean[MAX_DEPTH]; //whether the current object or array has no members yet
+    private int position = 0;
+    private int depth = 0;
+    private final OutputStream out;
+
+    JsonWriter(OutputStream out) { //subclassed only by CborWriter, which writes the same structures in binary
+        this.out = out;
+    }
+
+    /** Returns a writer for the given stream.  Call close() when done, which flushes it; the stream itself is left open. */
+    public static JsonWriter of(OutputStream out) {
+        return new JsonWriter(out);
+    }
+
+    /** Serializes a single object to a String, for message payloads and the like */
+    public static String toJson(JsonWritable object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (JsonWriter writer = new JsonWriter(bytes)) {
+            object.writeJson(writer);
+        } catch (IOException ioe) { //can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException(ioe);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return begin('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return end('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return begin('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return end(']');
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        separator();
+        string(name);
+        ascii(':');
+        first[depth] = true; //the value that follows doesn't need a comma
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        separator();
+        if (value == null) {
+            ascii("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) { //same as JsonGenerator
+            throw new NumberFormatException("JSON cannot represent "+value);
+        }
+        separator();
+        ascii(String.valueOf(value));
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        separator();
+        ascii(String.valueOf(value));
+        return this;
+    }
+
+    public JsonWriter value(JsonWritable value) throws IOException {
+        if (value == null) return value((String) null);
+        value.writeJson(this); //its beginObject writes any separator needed
+        return this;
+    }
+
+    public void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        out.flush();
+    }
+
+    /** Flushes, and hands the buffer back for this thread's next writer; the stream itself is left open */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (buffer != null) BUFFERS.set(buffer);
+            buffer = null;
+        }
+    }
+
+    /** Takes this thread's spare buffer, or makes one if it's in use (by a writer nested in another) or there isn't one */
+    private static byte[] borrow() {
+        byte[] spare = BUFFERS.get();
+        if (spare == null) return new byte[BUFFER_SIZE];
+        BUFFERS.set(null);
+        return spare;
+    }
+
+    /** Writes a raw byte, for subclasses */
+    void write(int b) throws IOException {
+        if (position == BUFFER_SIZE) drain();
+        buffer[position++] = (byte) b;
+    }
+
+    /** Writes a string as UTF-8, without quotes or escaping, for subclasses */
+    void writeUtf8(String value) throws IOException {
+        for (int index=0, length=value.length(); index<length; index++) {
+            char c = value.charAt(index);
+            if (c < 0x80) {
+                write(c);
+            } else if (Character.isHighSurrogate(c) && (index+1 < length) && Character.isLowSurrogate(value.charAt(index+1))) {
+                utf8(Character.toCodePoint(c, value.charAt(++index)));
+            } else {
+                utf8(Character.isSurrogate(c) ? '?' : c);
+            }
+        }
+    }
+
+    /** How many bytes writeUtf8 will write for this string */
+    static int utf8Length(String value) {
+        int bytes = 0;
+        for (int index=0, length=value.length(); index<length; index++) {
+            char c = value.charAt(index);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && (index+1 < length) && Character.isLowSurrogate(value.charAt(index+1))) {
+                bytes += 4;
+                index++;
+            } else {
+                bytes += Character.isSurrogate(c) ? 1 : 3; //an unpaired surrogate is written as '?'
+            }
+        }
+        return bytes;
+    }
+
+    private JsonWriter begin(char bracket) throws IOException {
+        separator();
+        ascii(bracket);
+        if (++depth >= MAX_DEPTH) throw new IllegalStateException("JSON nested more than "+MAX_DEPTH+" deep");
+        first[depth] = true;
+        return this;
+    }
+
+    private JsonWriter end(char bracket) throws IOException {
+        depth--;
+        ascii(bracket);
+        return this;
+    }
+
+    private void separator() throws IOException {
+        if (first[depth]) {
+            first[depth] = false;
+        } else if (depth > 0) {
+            ascii(',');
+        }
+    }
+
+    private void string(String value) throws IOException {
+        ascii('"');
+        for (int index=0, length=value.length(); index<length; index++) {
+            char c = value.charAt(index);
+            switch (c) {
+                case '"':  ascii("\\\""); break;
+                case '\\': ascii("\\\\"); break;
+                case '\b': ascii("\\b"); break;
+                case '\f': ascii("\\f"); break;
+                case '\n': ascii("\\n"); break;
+                case '\r': ascii("\\r"); break;
+                case '\t': ascii("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        ascii("\\u00");
+                        ascii((char) HEX[c >> 4]);
+                        ascii((char) HEX[c & 0xf]);
+                    } else if (c < 0x80) {
+                        ascii(c);
+                    } else if (Character.isHighSurrogate(c) && (index+1 < length) && Character.isLowSurrogate(value.charAt(index+1))) {
+                        utf8(Character.toCodePoint(c, value.charAt(++index)));
+                    } else {
+                        utf8(Character.isSurrogate(c) ? '?' : c); //an unpaired surrogate can't be encoded
+                    }
+            }
+        }
+        ascii('"');
+    }
+
+    private void utf8(int codePoint) throws IOException {
+        if (position + 4 > BUFFER_SIZE) drain();
+        if (codePoint < 0x800) {
+            buffer[position++] = (byte) (0xc0 | (codePoint >> 6));
+        } else if (codePoint < 0x10000) {
+            buffer[position++] = (byte) (0xe0 | (codePoint >> 12));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        } else {
+            buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        }
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+    }
+
+    private void ascii(String text) throws IOException {
+        for (int index=0, length=text.length(); index<length; index++) ascii(text.charAt(index));
+    }
+
+    private void ascii(char c) throws IOException {
+        if (position == BUFFER_SIZE) drain();
+        buffer[position++] = (byte) c;
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
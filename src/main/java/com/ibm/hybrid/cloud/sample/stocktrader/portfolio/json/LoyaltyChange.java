@@ -16,8 +16,11 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.io.IOException;
+import java.util.Objects;
+
 /** JSON-B POJO class representing an ODM business rule for determining the loyalty level of a portfolio */
-public class LoyaltyChange {
+public class LoyaltyChange implements JsonWritable {
     private String fOwner;
     private String fOld;
     private String fNew;
@@ -67,11 +70,29 @@ public class LoyaltyChange {
 
     public boolean equals(Object obj) {
         boolean isEqual = false;
-        if ((obj != null) && (obj instanceof LoyaltyChange)) isEqual = toString().equals(obj.toString());
+        if ((obj != null) && (obj instanceof LoyaltyChange)) {
+            LoyaltyChange other = (LoyaltyChange) obj;
+            isEqual = Objects.equals(fOwner, other.fOwner) && Objects.equals(fOld, other.fOld)
+                   && Objects.equals(fNew, other.fNew) && Objects.equals(fId, other.fId);
+        }
         return isEqual;
-   }
+    }
+
+    public int hashCode() {
+        return Objects.hash(fOwner, fOld, fNew, fId);
+    }
+
+    /** The JMS message body, in the order the notification services have always received it */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("owner").value(fOwner);
+        writer.name("old").value(fOld);
+        writer.name("new").value(fNew);
+        writer.name("id").value(fId);
+        writer.endObject();
+    }
 
     public String toString() {
-        return "{\"owner\": \""+fOwner+"\", \"old\": \""+fOld+"\", \"new\": \""+fNew+"\", \"id\": \""+fId+"\"}";
+        return JsonWriter.toJson(this);
     }
 }
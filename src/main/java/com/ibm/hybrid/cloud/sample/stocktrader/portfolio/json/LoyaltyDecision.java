@@ -16,6 +16,8 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.util.Objects;
+
 /** JSON-B POJO class representing an ODM business rule for determining the loyalty level of a portfolio */
 public class LoyaltyDecision {
     private double tradeTotal = 0.0;
@@ -47,9 +49,16 @@ public class LoyaltyDecision {
 
     public boolean equals(Object obj) {
         boolean isEqual = false;
-        if ((obj != null) && (obj instanceof LoyaltyDecision)) isEqual = toString().equals(obj.toString());
+        if ((obj != null) && (obj instanceof LoyaltyDecision)) {
+            LoyaltyDecision other = (LoyaltyDecision) obj;
+            isEqual = (Double.compare(tradeTotal, other.tradeTotal) == 0) && Objects.equals(loyalty, other.loyalty);
+        }
         return isEqual;
-   }
+    }
+
+    public int hashCode() {
+        return Objects.hash(tradeTotal, loyalty);
+    }
 
     public String toString() {
         return "{\"tradeTotal\": "+tradeTotal+", \"loyalty\": \""+loyalty+"\"}";
@@ -16,6 +16,8 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.util.Objects;
+
 /** JSON-B POJO class representing an ODM business rule for determining the loyalty level of a portfolio */
 public class ODMLoyaltyRule {
     private LoyaltyDecision theLoyaltyDecision = null;
@@ -45,9 +47,16 @@ public class ODMLoyaltyRule {
 
     public boolean equals(Object obj) {
         boolean isEqual = false;
-        if ((obj != null) && (obj instanceof ODMLoyaltyRule)) isEqual = toString().equals(obj.toString());
+        if ((obj != null) && (obj instanceof ODMLoyaltyRule)) {
+            ODMLoyaltyRule other = (ODMLoyaltyRule) obj;
+            isEqual = Objects.equals(theLoyaltyDecision, other.theLoyaltyDecision);
+        }
         return isEqual;
-   }
+    }
+
+    public int hashCode() {
+        return Objects.hashCode(theLoyaltyDecision);
+    }
 
     public String toString() {
         return "{\"theLoyaltyDecision\": "+theLoyaltyDecision.toString()+"}";
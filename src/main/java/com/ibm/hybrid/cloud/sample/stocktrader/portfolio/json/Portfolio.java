@@ -16,10 +16,18 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.Table;
 import javax.persistence.Transient;
@@ -28,18 +36,22 @@ import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
-import javax.json.JsonObject;
 import javax.json.bind.annotation.JsonbTransient;
 
-//JSON-P 1.0 (JSR 353).  This replaces my old usage of IBM's JSON4J (com.ibm.json.java.JSONObject)
-import javax.json.Json;
-import javax.json.JsonObjectBuilder;
-
 @Entity
 @Table
+@Cacheable //size and expiry of the second-level cache are set in META-INF/eclipselink-orm.xml
 @NamedQuery(name = "Portfolio.findAll", query = "SELECT p FROM Portfolio p")
+@NamedQuery(name = "Portfolio.findAfter", query = "SELECT p FROM Portfolio p WHERE p.owner > :after ORDER BY p.owner")
+@NamedQuery(name = "Portfolio.findByOwnerWithStocks",
+            query = "SELECT DISTINCT p FROM Portfolio p LEFT JOIN FETCH p.stockList WHERE p.owner = :owner")
+@NamedQuery(name = "Portfolio.findByOwnersWithStocks",
+            query = "SELECT DISTINCT p FROM Portfolio p LEFT JOIN FETCH p.stockList WHERE p.owner IN :owners")
 /** JSON-B POJO class representing a Portfolio JSON object */
-public class Portfolio {
+public class Portfolio implements JsonWritable {
+    /** Names of the JSON properties, in the order they're written; a projection (see writeJson) is a subset of these */
+    public static final Set<String> PROPERTIES = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(
+        "balance", "commissions", "free", "loyalty", "nextCommission", "owner", "sentiment", "stocks", "total")));
 
     @Id
     @Column(nullable = false, length = 32)
@@ -54,7 +66,7 @@ public class Portfolio {
     @Transient
     private double nextCommission;
     @Transient
-    JsonObject stocks;
+    Map<String, Stock> stocks; //keyed by symbol, in the order added; serialized as the "stocks" JSON object
 
     @JsonbTransient
     @OneToMany(mappedBy = "portfolio", cascade = CascadeType.ALL)
@@ -143,56 +155,88 @@ public class Portfolio {
         nextCommission = newNextCommission;
     }
 
-    public JsonObject getStocks() {
+    @JsonbTransient
+    public List<Stock> getStockList() {
+        return stockList;
+    }
+
+    public void setStockList(List<Stock> newStockList) {
+        stockList = newStockList;
+    }
+
+    public Map<String, Stock> getStocks() {
         return stocks;
     }
 
-    public void setStocks(JsonObject newStocks) {
+    public void setStocks(Map<String, Stock> newStocks) {
         stocks = newStocks;
     }
-   
+
+    /** Typed lookup of one holding in "stocks", or null if it isn't there */
+    public Stock getStock(String symbol) {
+        return (stocks != null) ? stocks.get(symbol) : null;
+    }
+
     public void addStock(Stock newStock) {
         if (newStock != null) {
             String symbol = newStock.getSymbol();
             if (symbol != null) {
-                JsonObjectBuilder stocksBuilder = Json.createObjectBuilder();
-            
-                if (stocks != null) { //JsonObject is immutable, so copy current "stocks" into new builder
-                    Iterator<String> iter = stocks.keySet().iterator();
-                    while (iter.hasNext()) {
-                        String key = iter.next();
-                        JsonObject obj = stocks.getJsonObject(key);
-                        stocksBuilder.add(key, obj);
-                    }
-                }
-
-                //can only add a JSON-P object to a JSON-P object; can't add a JSON-B object.  So converting...
-                JsonObjectBuilder builder = Json.createObjectBuilder();
-
-                builder.add("symbol", symbol);
-                builder.add("shares", newStock.getShares());
-                builder.add("commission", newStock.getCommission());
-                builder.add("price", newStock.getPrice());
-                builder.add("total", newStock.getTotal());
-                builder.add("date", newStock.getDate());
-
-                JsonObject stock = builder.build();
-
-                stocksBuilder.add(symbol, stock); //might be replacing an item; caller needs to do any merge (like updatePortfolio does)
-                stocks = stocksBuilder.build();
+                if (stocks == null) stocks = new LinkedHashMap<String, Stock>(); //left null until needed, so "stocks" is omitted until then
+
+                stocks.put(symbol, newStock); //might be replacing an item; caller needs to do any merge (like updatePortfolio does)
             }
         }
     }
 
     public boolean equals(Object obj) {
         boolean isEqual = false;
-        if ((obj != null) && (obj instanceof Portfolio)) isEqual = toString().equals(obj.toString());
+        if ((obj != null) && (obj instanceof Portfolio)) {
+            Portfolio other = (Portfolio) obj;
+            isEqual = Objects.equals(owner, other.owner) && (Double.compare(total, other.total) == 0)
+                   && Objects.equals(loyalty, other.loyalty) && (Double.compare(balance, other.balance) == 0)
+                   && (Double.compare(commissions, other.commissions) == 0) && (free == other.free)
+                   && Objects.equals(sentiment, other.sentiment) && (Double.compare(nextCommission, other.nextCommission) == 0)
+                   && Objects.equals(stocks, other.stocks);
+        }
         return isEqual;
-   }
+    }
+
+    public int hashCode() {
+        return Objects.hashCode(owner); //the primary key alone, so the hash doesn't change as the portfolio is updated
+    }
+
+    /** Same output as JSON-B: properties in lexicographical order, with nulls omitted */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writeJson(writer, null);
+    }
+
+    /** Writes only the named properties, or all of them if fields is null, otherwise just as writeJson(writer) does */
+    public void writeJson(JsonWriter writer, Set<String> fields) throws IOException {
+        writer.beginObject();
+        if (includes(fields, "balance")) writer.name("balance").value(balance);
+        if (includes(fields, "commissions")) writer.name("commissions").value(commissions);
+        if (includes(fields, "free")) writer.name("free").value(free);
+        if ((loyalty != null) && includes(fields, "loyalty")) writer.name("loyalty").value(loyalty);
+        if (includes(fields, "nextCommission")) writer.name("nextCommission").value(nextCommission);
+        if ((owner != null) && includes(fields, "owner")) writer.name("owner").value(owner);
+        if ((sentiment != null) && includes(fields, "sentiment")) writer.name("sentiment").value(sentiment);
+        if ((stocks != null) && includes(fields, "stocks")) {
+            writer.name("stocks").beginObject();
+            for (Map.Entry<String, Stock> entry : stocks.entrySet()) {
+                writer.name(entry.getKey()).value(entry.getValue());
+            }
+            writer.endObject();
+        }
+        if (includes(fields, "total")) writer.name("total").value(total);
+        writer.endObject();
+    }
+
+    /** Whether a projection (null meaning everything) includes the named property */
+    public static boolean includes(Set<String> fields, String name) {
+        return (fields == null) || fields.contains(name);
+    }
 
     public String toString() {
-        return "{\"owner\": \""+owner+"\", \"total\": "+total+", \"loyalty\": \""+loyalty+"\", \"balance\": "+balance
-               +", \"commissions\": "+commissions+", \"free\": "+free+", \"nextCommission\": "+nextCommission
-               +", \"sentiment\": \""+sentiment+"\", \"stocks\": "+(stocks!=null?stocks.toString():"{}")+"}";
+        return JsonWriter.toJson(this);
     }
-}
\ No newline at end of file
+}
@@ -16,6 +16,8 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.util.Objects;
+
 /** JSON-B POJO class representing a Quote JSON object */
 public class Quote {
     private String symbol;
@@ -78,9 +80,17 @@ public class Quote {
 
     public boolean equals(Object obj) {
         boolean isEqual = false;
-        if ((obj != null) && (obj instanceof Quote)) isEqual = toString().equals(obj.toString());
+        if ((obj != null) && (obj instanceof Quote)) {
+            Quote other = (Quote) obj;
+            isEqual = Objects.equals(symbol, other.symbol) && (Double.compare(price, other.price) == 0)
+                   && Objects.equals(date, other.date) && (time == other.time);
+        }
         return isEqual;
-   }
+    }
+
+    public int hashCode() {
+        return Objects.hash(symbol, price, date, time);
+    }
 
     public String toString() {
         return "{\"symbol\": \""+symbol+"\", \"price\": "+price+", \"date\": \""+date+"\", \"time\": "+time+"}";
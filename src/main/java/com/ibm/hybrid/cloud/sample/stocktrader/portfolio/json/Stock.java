@@ -16,26 +16,33 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.io.IOException;
+import java.util.Objects;
+
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.Table;
-import javax.persistence.Id;
-import javax.persistence.IdClass;
+import javax.persistence.EmbeddedId;
 import javax.persistence.JoinColumn;
+import javax.persistence.MapsId;
 import javax.persistence.NamedQuery;
 import javax.persistence.Column;
 import javax.persistence.ManyToOne;
+import javax.json.bind.annotation.JsonbPropertyOrder;
+import javax.json.bind.annotation.JsonbTransient;
 
 @Entity
 @Table
-@NamedQuery(name = "Stock.findByOwner", query = "SELECT s FROM Stock s WHERE s.portfolio.owner = :owner")
+@Cacheable //size and expiry of the second-level cache are set in META-INF/eclipselink-orm.xml
+@NamedQuery(name = "Stock.findByOwner", query = "SELECT s FROM Stock s WHERE s.id.owner = :owner")
 @NamedQuery(name = "Stock.findByOwnerAndSymbol", 
-            query = "SELECT s FROM Stock s WHERE s.portfolio.owner = :owner AND s.symbol = :symbol")
+            query = "SELECT s FROM Stock s WHERE s.id.owner = :owner AND s.id.symbol = :symbol")
+@JsonbPropertyOrder({"symbol", "shares", "commission", "price", "total", "date"})
 /** JSON-B POJO class representing a Stock JSON object */
-public class Stock {
+public class Stock implements JsonWritable {
 
-    @Id
-    @Column(nullable = false, length = 8)
-    private String symbol;
+    @EmbeddedId
+    private StockId id = new StockId();
     private int shares;
     private double commission;
     private double price;
@@ -44,7 +51,7 @@ public class Stock {
     @Column(name="dateQuoted")
     private String date;
 
-    //@Id
+    @MapsId("owner") //the owner half of the key comes from the portfolio
     @ManyToOne
     @JoinColumn(name = "owner")
     private Portfolio portfolio;
@@ -66,12 +73,21 @@ public class Stock {
         setDate(initialDate);
     }
 
+    @JsonbTransient
+    public StockId getId() {
+        return id;
+    }
+
+    public void setId(StockId newId) {
+        id = newId;
+    }
+
     public String getSymbol() {
-        return symbol;
+        return id.getSymbol();
     }
 
     public void setSymbol(String newSymbol) {
-        symbol = newSymbol;
+        id.setSymbol(newSymbol);
     }
 
     public int getShares() {
@@ -114,16 +130,45 @@ public class Stock {
         date = newDate;
     }
 
+    @JsonbTransient
     public Portfolio getPortfolio() {
         return portfolio;
     }
 
     public void setPortfolio(Portfolio newPortfolio) {
         portfolio = newPortfolio;
+        id.setOwner((newPortfolio != null) ? newPortfolio.getOwner() : null);
+    }
+
+    public boolean equals(Object obj) {
+        boolean isEqual = false;
+        if ((obj != null) && (obj instanceof Stock)) {
+            Stock other = (Stock) obj;
+            isEqual = Objects.equals(id, other.id) && (shares == other.shares)
+                   && (Double.compare(commission, other.commission) == 0) && (Double.compare(price, other.price) == 0)
+                   && (Double.compare(total, other.total) == 0) && Objects.equals(date, other.date);
+        }
+        return isEqual;
+    }
+
+    public int hashCode() {
+        return Objects.hashCode(id); //the primary key alone, so the hash doesn't change as the holding is updated
+    }
+
+    /** Same output as JSON-B: properties in the @JsonbPropertyOrder above, with nulls omitted */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        String symbol = getSymbol();
+        if (symbol != null) writer.name("symbol").value(symbol);
+        writer.name("shares").value(shares);
+        writer.name("commission").value(commission);
+        writer.name("price").value(price);
+        writer.name("total").value(total);
+        if (date != null) writer.name("date").value(date);
+        writer.endObject();
     }
 
     public String toString() {
-        return "{\"symbol\": \""+symbol+"\", \"shares\": "+shares+", \"commission\": "+commission
-               +", \"price\": "+price+", \"total\": "+total+", \"date\": \""+date+"\"}";
+        return JsonWriter.toJson(this);
     }
 }
@@ -0,0 +1,76 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+@Embeddable
+/** Primary key of the Stock table: PRIMARY KEY(owner, symbol), as declared in createTables.ddl */
+public class StockId implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Column(nullable = false, length = 32)
+    private String owner;
+
+    @Column(nullable = false, length = 8)
+    private String symbol;
+
+    public StockId() { //default constructor
+    }
+
+    public StockId(String initialOwner, String initialSymbol) {
+        setOwner(initialOwner);
+        setSymbol(initialSymbol);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String newOwner) {
+        owner = newOwner;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public void setSymbol(String newSymbol) {
+        symbol = newSymbol;
+    }
+
+    public boolean equals(Object obj) {
+        boolean isEqual = false;
+        if ((obj != null) && (obj instanceof StockId)) {
+            StockId other = (StockId) obj;
+            isEqual = Objects.equals(owner, other.owner) && Objects.equals(symbol, other.symbol);
+        }
+        return isEqual;
+    }
+
+    public int hashCode() {
+        return Objects.hash(owner, symbol);
+    }
+
+    public String toString() {
+        return "{\"owner\": \""+owner+"\", \"symbol\": \""+symbol+"\"}";
+    }
+}
@@ -16,8 +16,11 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.io.IOException;
+import java.util.Objects;
+
 /** JSON-B POJO class representing a Stock Purchase JSON object */
-public class StockPurchase {
+public class StockPurchase implements JsonWritable {
     private String id; //each trade will have its own UUID
     private String owner;
     private String symbol;
@@ -99,12 +102,33 @@ public class StockPurchase {
 
     public boolean equals(Object obj) {
         boolean isEqual = false;
-        if ((obj != null) && (obj instanceof StockPurchase)) isEqual = toString().equals(obj.toString());
+        if ((obj != null) && (obj instanceof StockPurchase)) {
+            StockPurchase other = (StockPurchase) obj;
+            isEqual = Objects.equals(id, other.id) && Objects.equals(owner, other.owner) && Objects.equals(symbol, other.symbol)
+                   && (shares == other.shares) && (Double.compare(price, other.price) == 0) && Objects.equals(when, other.when)
+                   && (Double.compare(commission, other.commission) == 0);
+        }
         return isEqual;
-   }
+    }
+
+    public int hashCode() {
+        return Objects.hash(id, owner, symbol, shares, price, when, commission);
+    }
+
+    /** The Kafka message body, in the order the trade history service has always received it */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(id);
+        writer.name("owner").value(owner);
+        writer.name("symbol").value(symbol);
+        writer.name("shares").value(shares);
+        writer.name("price").value(price);
+        writer.name("when").value(when);
+        writer.name("commission").value(commission);
+        writer.endObject();
+    }
 
     public String toString() {
-        return "{\"id\": \""+id+"\", \"owner\": \""+owner+"\", \"symbol\": \""+symbol+"\", \"shares\": "+shares+
-               ", \"price\": "+price+", \"when\": \""+when+"\", \"commission\": "+commission+"}";
+        return JsonWriter.toJson(this);
     }
 }
@@ -0,0 +1,53 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
+
+/** JSON-B POJO class representing one leg of a multi-leg trade (PUT /{owner}/trades), like the symbol and shares
+ *  query params of PUT /{owner}.  Negative shares are a sale. */
+public class Trade {
+    private String symbol;
+    private int shares;
+
+
+    public Trade() { //default constructor
+    }
+
+    public Trade(String initialSymbol, int initialShares) {
+        setSymbol(initialSymbol);
+        setShares(initialShares);
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public void setSymbol(String newSymbol) {
+        symbol = newSymbol;
+    }
+
+    public int getShares() {
+        return shares;
+    }
+
+    public void setShares(int newShares) {
+        shares = newShares;
+    }
+
+    public String toString() {
+        return "{\"symbol\": \""+symbol+"\", \"shares\": "+shares+"}";
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.util.Arrays;
+
 /** JSON-B POJO class representing a Watson Tone Analyzer document JSON object */
 public class WatsonDocument {
     private WatsonTone[] tones;
@@ -38,10 +40,17 @@ public class WatsonDocument {
 
     public boolean equals(Object obj) {
         boolean isEqual = false;
-        if ((obj != null) && (obj instanceof WatsonDocument)) isEqual = toString().equals(obj.toString());
+        if ((obj != null) && (obj instanceof WatsonDocument)) {
+            WatsonDocument other = (WatsonDocument) obj;
+            isEqual = Arrays.equals(tones, other.tones);
+        }
         return isEqual;
     }
 
+    public int hashCode() {
+        return Arrays.hashCode(tones);
+    }
+
     public String toString() {
         StringBuffer json = new StringBuffer("{\"tones\": ");
         if (tones != null) {
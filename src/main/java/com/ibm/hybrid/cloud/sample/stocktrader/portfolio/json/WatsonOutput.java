@@ -16,6 +16,8 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.util.Objects;
+
 /** JSON-B POJO class representing a Watson Tone Analyzer output JSON object */
 public class WatsonOutput {
     private WatsonDocument document_tone;
@@ -57,9 +59,16 @@ public class WatsonOutput {
 
     public boolean equals(Object obj) {
         boolean isEqual = false;
-        if ((obj != null) && (obj instanceof WatsonOutput)) isEqual = toString().equals(obj.toString());
+        if ((obj != null) && (obj instanceof WatsonOutput)) {
+            WatsonOutput other = (WatsonOutput) obj;
+            isEqual = Objects.equals(document_tone, other.document_tone);
+        }
         return isEqual;
-   }
+    }
+
+    public int hashCode() {
+        return Objects.hashCode(document_tone);
+    }
 
     public String toString() {
         StringBuffer json = new StringBuffer("{\"document_tone\": ");
@@ -16,6 +16,8 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json;
 
+import java.util.Objects;
+
 /** JSON-B POJO class representing a Watson Tone Analyzer tone JSON object */
 public class WatsonTone {
     private double score;
@@ -58,9 +60,17 @@ public class WatsonTone {
 
     public boolean equals(Object obj) {
         boolean isEqual = false;
-        if ((obj != null) && (obj instanceof WatsonTone)) isEqual = toString().equals(obj.toString());
+        if ((obj != null) && (obj instanceof WatsonTone)) {
+            WatsonTone other = (WatsonTone) obj;
+            isEqual = (Double.compare(score, other.score) == 0) && Objects.equals(tone_id, other.tone_id)
+                   && Objects.equals(tone_name, other.tone_name);
+        }
         return isEqual;
-   }
+    }
+
+    public int hashCode() {
+        return Objects.hash(score, tone_id, tone_name);
+    }
 
     public String toString() {
         return "{\"score\": "+score+", tone_id\": \""+tone_id+"\", \"tone_name\": \""+tone_name+"\"}";
@@ -0,0 +1,206 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.quote;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Quote;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+//mpConfig 1.3
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+//mpMetrics 2.0
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.eclipse.microprofile.metrics.annotation.Metric;
+
+
+@ApplicationScoped
+/** Shared, size-bounded cache of stock quotes, keyed by symbol.  Entries younger than the TTL are fresh.
+ *  Entries past the TTL, but still within the stale window, are served as-is while the caller refreshes
+ *  them in the background.  Anything older than that is treated as a miss.  The least recently used
+ *  entry is evicted once the cache is full.
+ */
+public class QuoteCache {
+	private static Logger logger = Logger.getLogger(QuoteCache.class.getName());
+
+	private @Inject @ConfigProperty(name = "QUOTE_CACHE_TTL_MS", defaultValue = "30000") long ttl; //0 disables the cache
+	private @Inject @ConfigProperty(name = "QUOTE_CACHE_STALE_MS", defaultValue = "300000") long staleWindow;
+	private @Inject @ConfigProperty(name = "QUOTE_CACHE_SIZE", defaultValue = "1000") int maxSize;
+
+	private LongSupplier clock = System::nanoTime; //when each entry was fetched, and how old it is now, in nanoseconds
+
+	private @Inject @Metric(name="quote_cache_hits", absolute=true, description="Stock quotes served fresh from the quote cache") Counter hits;
+	private @Inject @Metric(name="quote_cache_stale_hits", absolute=true, description="Stale stock quotes served from the quote cache while being refreshed") Counter staleHits;
+	private @Inject @Metric(name="quote_cache_misses", absolute=true, description="Stock quotes not found in the quote cache") Counter misses;
+
+	//access-ordered, so iteration order is least recently used first
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	public QuoteCache() { //used by CDI, which injects the settings and metrics
+	}
+
+	/** For use outside of CDI, as by QuoteCacheTest, with the metrics kept locally */
+	public QuoteCache(long ttl, long staleWindow, int maxSize) {
+		this(ttl, staleWindow, maxSize, System::nanoTime);
+	}
+
+	/** As above, but with entries aged by the given clock (in nanoseconds), so tests can move time along themselves */
+	public QuoteCache(long ttl, long staleWindow, int maxSize, LongSupplier clock) {
+		this.ttl = ttl;
+		this.staleWindow = staleWindow;
+		this.maxSize = maxSize;
+		this.clock = clock;
+		hits = new LocalCounter();
+		staleHits = new LocalCounter();
+		misses = new LocalCounter();
+	}
+
+	public boolean isEnabled() {
+		return ttl > 0;
+	}
+
+	/** Returns the cached entry for this symbol, or null if there isn't one that's still usable */
+	public Entry get(String symbol) {
+		if (!isEnabled()) return null;
+
+		Entry entry = null;
+		synchronized (entries) {
+			entry = entries.get(symbol);
+		}
+
+		long age = (entry != null) ? entry.getAge() : Long.MAX_VALUE;
+		if (age <= ttl) {
+			hits.inc();
+		} else if (age <= ttl + staleWindow) {
+			staleHits.inc();
+		} else {
+			misses.inc();
+			entry = null;
+		}
+		return entry;
+	}
+
+	/** Returns the cached quote for this symbol only if it's within the TTL, else null.  Not counted as a hit or
+	 *  miss, since it's meant for checks that are followed by a get() when they don't pan out. */
+	public Quote getFresh(String symbol) {
+		if (!isEnabled()) return null;
+
+		Entry entry = null;
+		synchronized (entries) {
+			entry = entries.get(symbol);
+		}
+		return ((entry != null) && !entry.isStale()) ? entry.getQuote() : null;
+	}
+
+	public void put(Quote quote) {
+		if (!isEnabled() || (quote == null) || (quote.getSymbol() == null)) return;
+
+		synchronized (entries) {
+			entries.put(quote.getSymbol(), new Entry(quote));
+		}
+	}
+
+	public void invalidate(String symbol) {
+		synchronized (entries) {
+			entries.remove(symbol);
+		}
+		logger.fine("Removed "+symbol+" from the quote cache");
+	}
+
+	@Gauge(name="quote_cache_size", absolute=true, unit=MetricUnits.NONE, description="Number of stock quotes in the quote cache")
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Gauge(name="quote_cache_hit_ratio", absolute=true, unit=MetricUnits.PERCENT, description="Percentage of quote cache lookups served from the cache, fresh or stale")
+	public double getHitRatio() {
+		long served = hits.getCount() + staleHits.getCount();
+		long total = served + misses.getCount();
+		return (total > 0) ? (100.0 * served / total) : 0.0;
+	}
+
+	private static class LocalCounter implements Counter {
+		private final AtomicLong count = new AtomicLong();
+
+		public void inc() {
+			count.incrementAndGet();
+		}
+
+		public void inc(long n) {
+			count.addAndGet(n);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+	}
+
+	/** A cached quote, plus when it was fetched and whether someone is already refreshing it */
+	public class Entry {
+		private final Quote quote;
+		private final long fetched = clock.getAsLong();
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(Quote quote) {
+			this.quote = quote;
+		}
+
+		public Quote getQuote() {
+			return quote;
+		}
+
+		long getAge() {
+			return TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - fetched);
+		}
+
+		public boolean isStale() {
+			return getAge() > ttl;
+		}
+
+		/** Returns true for exactly one caller, which is then responsible for refreshing this entry */
+		public boolean claimRefresh() {
+			return refreshing.compareAndSet(false, true);
+		}
+
+		public void refreshFailed() {
+			refreshing.set(false);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.quote;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.client.StockQuoteClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Quote;
+
+//Standard I/O classes
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+//Logging (JSR 47)
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+//Concurrency Utilities 1.0
+import javax.enterprise.concurrent.ManagedExecutorService;
+
+//mpConfig 1.3
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+//mpMetrics 2.0
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.annotation.Metric;
+
+//mpRestClient 1.3
+import org.eclipse.microprofile.rest.client.RestClientBuilder;
+
+
+@ApplicationScoped
+/** Looks up the stock quotes for a set of symbols concurrently, rather than one round trip at a time.
+ *  The calls run on the concurrent/StockQuoteExecutor managed executor, whose concurrency policy in server.xml
+ *  bounds them (QUOTE_THREADS and QUOTE_QUEUE_SIZE), and the caller waits no longer than a per-request deadline.
+ *  Quotes are served from the shared QuoteCache when possible.
+ */
+public class QuoteFetcher {
+	private static Logger logger = Logger.getLogger(QuoteFetcher.class.getName());
+
+	private static final String URL_PROPERTY = StockQuoteClient.class.getName() + "/mp-rest/url";
+
+	private @Inject @ConfigProperty(name = "QUOTE_TIMEOUT_MS", defaultValue = "5000") long timeout;
+	private @Inject @ConfigProperty(name = "QUOTE_BULK", defaultValue = "true") boolean bulk;
+	private @Inject @ConfigProperty(name = "QUOTE_BULK_THRESHOLD", defaultValue = "10") int bulkThreshold; //fewest misses worth pulling all of stock-quote's quotes for
+
+	@Inject
+	private QuoteCache quoteCache;
+
+	@Inject
+	private QuoteHedger quoteHedger;
+
+	private @Inject @Metric(name="quote_calls", absolute=true, description="Individual calls made to the stock-quote microservice") Counter calls;
+	private @Inject @Metric(name="quote_calls_coalesced", absolute=true, description="Stock quote lookups that joined a call already in flight for the same symbol") Counter coalesced;
+
+	//lookups currently waiting on stock-quote, keyed by symbol
+	private final ConcurrentHashMap<String, CompletableFuture<Quote>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Quote>>();
+
+	//container-managed, so its threads carry the application's context and are stopped when it is; when its queue
+	//is full, the requesting thread makes the call itself, which throttles it
+	@Resource(lookup = "concurrent/StockQuoteExecutor")
+	private ManagedExecutorService executor;
+
+	private StockQuoteClient stockQuoteClient = null;
+
+	@PostConstruct
+	void initialize() {
+		//same URL resolution as PortfolioService's static initializer
+		String url = System.getenv("STOCK_QUOTE_URL");
+		if ((url == null) || url.isEmpty()) url = System.getProperty(URL_PROPERTY);
+		logger.info("Using Stock Quote URL "+url);
+
+		stockQuoteClient = RestClientBuilder.newBuilder()
+			.baseUri(URI.create(url))
+			.executorService(executor)
+			.build(StockQuoteClient.class);
+	}
+
+	/** Returns the quotes that arrived before the deadline, keyed by symbol.  Symbols whose lookup failed
+	 *  or timed out are simply absent from the map, so the caller can fall back to its cached price.
+	 *  Cached quotes are used first, with stale ones refreshed in the background.  In bulk mode, if at least
+	 *  QUOTE_BULK_THRESHOLD symbols are still missing, all of stock-quote's cached quotes are then fetched in
+	 *  one call, and individual lookups are only made for the symbols that weren't in that result.
+	 */
+	public Map<String, Quote> getQuotes(String jwt, Collection<String> symbols) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		Map<String, Quote> quotes = new HashMap<String, Quote>();
+		Set<String> missing = new LinkedHashSet<String>(symbols);
+		int requested = missing.size();
+
+		if (quoteCache.isEnabled()) {
+			List<QuoteCache.Entry> stale = new ArrayList<QuoteCache.Entry>();
+			Iterator<String> iter = missing.iterator();
+			while (iter.hasNext()) {
+				String symbol = iter.next();
+				QuoteCache.Entry entry = quoteCache.get(symbol);
+				if (entry != null) {
+					quotes.put(symbol, entry.getQuote());
+					iter.remove();
+					if (entry.isStale() && entry.claimRefresh()) stale.add(entry);
+				}
+			}
+			if (!stale.isEmpty()) refresh(jwt, stale);
+			if (missing.isEmpty()) {
+				logger.fine("All "+requested+" stock quotes served from the quote cache");
+				return quotes;
+			}
+		}
+
+		if (bulk && (missing.size() >= bulkThreshold)) { //not worth pulling every quote for a few symbols
+			Quote[] cached = null;
+			try {
+				logger.info("Calling stock-quote microservice for all cached quotes");
+				cached = await(stockQuoteClient.getAllCachedQuotesAsync(jwt).toCompletableFuture(), deadline, "all cached quotes");
+			} catch (Throwable t) {
+				logger.warning("Unable to request all cached stock quotes");
+				logException(t);
+			}
+
+			if (cached != null) for (Quote quote : cached) {
+				String symbol = (quote != null) ? quote.getSymbol() : null;
+				if ((symbol == null) || !missing.remove(symbol)) continue; //only cache what was asked for, so the rest can't evict hot entries
+				quotes.put(symbol, quote);
+				quoteCache.put(quote);
+			}
+			logger.fine("Bulk lookup found "+quotes.size()+" of "+requested+" stock quotes");
+		}
+
+		Map<String, CompletableFuture<Quote>> futures = new LinkedHashMap<String, CompletableFuture<Quote>>();
+		for (String symbol : missing) {
+			try {
+				futures.put(symbol, lookup(jwt, symbol));
+			} catch (Throwable t) {
+				logger.warning("Unable to request stock quote for "+symbol);
+				logException(t);
+			}
+		}
+
+		for (Map.Entry<String, CompletableFuture<Quote>> entry : futures.entrySet()) {
+			String symbol = entry.getKey();
+			Quote quote = await(entry.getValue(), deadline, symbol);
+			if (quote != null) {
+				quotes.put(symbol, quote);
+				quoteCache.put(quote);
+			}
+		}
+
+		logger.fine("Got "+quotes.size()+" of "+requested+" stock quotes");
+		return quotes;
+	}
+
+	/** Returns the quotes for all of these symbols if every one of them is in the quote cache and within its TTL,
+	 *  or null if any isn't.  Never calls stock-quote, so callers can use it to check whether a fresh lookup would
+	 *  change anything before making one.
+	 */
+	public Map<String, Quote> getFreshQuotes(Collection<String> symbols) {
+		Map<String, Quote> quotes = new HashMap<String, Quote>();
+		for (String symbol : symbols) {
+			Quote quote = quoteCache.getFresh(symbol);
+			if (quote == null) return null;
+			quotes.put(symbol, quote);
+		}
+		return quotes;
+	}
+
+	/** Looks up a single quote.  If a lookup for the same symbol is already in flight, the caller shares its
+	 *  result (or failure) rather than making another call.  Each caller gets its own dependent future, so
+	 *  one caller giving up on it doesn't cancel it for the others.
+	 */
+	private CompletableFuture<Quote> lookup(String jwt, String symbol) {
+		CompletableFuture<Quote> call = new CompletableFuture<Quote>();
+		CompletableFuture<Quote> existing = inFlight.putIfAbsent(symbol, call);
+		if (existing != null) {
+			logger.fine("Joining in-flight stock quote lookup for "+symbol);
+			coalesced.inc();
+			return existing.thenApply(quote -> quote);
+		}
+
+		calls.inc();
+		try {
+			logger.info("Calling stock-quote microservice for "+symbol);
+			quoteHedger.call(symbol, () -> stockQuoteClient.getStockQuoteAsync(jwt, symbol)).whenComplete((quote, failure) -> {
+				inFlight.remove(symbol, call); //later callers should get a fresh answer
+				if (failure != null) {
+					call.completeExceptionally(failure);
+				} else {
+					call.complete(quote);
+				}
+			});
+		} catch (Throwable t) {
+			inFlight.remove(symbol, call);
+			call.completeExceptionally(t);
+		}
+		return call.thenApply(quote -> quote);
+	}
+
+	/** Re-fetches stale cache entries without making the caller wait for them */
+	private void refresh(String jwt, List<QuoteCache.Entry> entries) {
+		for (QuoteCache.Entry entry : entries) {
+			String symbol = entry.getQuote().getSymbol();
+			try {
+				logger.fine("Refreshing stale stock quote for "+symbol+" in the background");
+				lookup(jwt, symbol).whenComplete((quote, failure) -> {
+					if ((failure == null) && (quote != null)) {
+						quoteCache.put(quote);
+					} else {
+						logger.warning("Unable to refresh stale stock quote for "+symbol);
+						entry.refreshFailed(); //let the next caller try again
+					}
+				});
+			} catch (Throwable t) {
+				logger.warning("Unable to request refresh of stock quote for "+symbol);
+				logException(t);
+				entry.refreshFailed();
+			}
+		}
+	}
+
+	/** Waits for the result until the deadline; returns null (after logging why) if it doesn't arrive */
+	private <T> T await(CompletableFuture<T> future, long deadline, String what) {
+		T result = null;
+		try {
+			long remaining = Math.max(deadline - System.nanoTime(), 0);
+			result = future.get(remaining, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException te) {
+			logger.warning("Stock quote for "+what+" did not arrive within "+timeout+" ms");
+			future.cancel(true);
+		} catch (ExecutionException ee) {
+			logger.warning("Unable to get stock quote for "+what);
+			logException(ee.getCause());
+		} catch (InterruptedException ie) {
+			logger.warning("Interrupted while waiting for stock quote for "+what);
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		return result;
+	}
+
+	private static void logException(Throwable t) {
+		logger.warning(t.getClass().getName()+": "+t.getMessage());
+
+		//only log the stack trace if the level has been set to at least INFO
+		if (logger.isLoggable(Level.INFO)) {
+			StringWriter writer = new StringWriter();
+			t.printStackTrace(new PrintWriter(writer));
+			logger.info(writer.toString());
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.quote;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Quote;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+//CDI 2.0
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+//Concurrency Utilities 1.0
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+
+//mpConfig 1.3
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+//mpMetrics 2.0
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.eclipse.microprofile.metrics.annotation.Metric;
+
+
+@ApplicationScoped
+/** Optional hedging of stock quote calls, to cut off the slow tail of stock-quote's latency.  If a call
+ *  hasn't answered within the configured percentile of recently observed latencies, an identical second
+ *  call is sent; whichever answers first wins, and the other is cancelled.  Hedges are limited to a
+ *  fraction of the calls made (the hedge budget), so a slow stock-quote never sees more than that much
+ *  extra load.  Cancelling only abandons the loser's future: the rest client has no way to abort the
+ *  HTTP call itself, so it still runs to completion (or its read timeout) and its answer is discarded.
+ */
+public class QuoteHedger {
+	private static Logger logger = Logger.getLogger(QuoteHedger.class.getName());
+
+	private static final int SAMPLES = 1000;    //how many recent latencies the percentile is computed over
+	private static final int RECOMPUTE = 100;   //recompute the hedge delay after this many new samples
+	private static final double MAX_TOKENS = 10; //largest burst of hedges the budget allows
+
+	private @Inject @ConfigProperty(name = "QUOTE_HEDGING", defaultValue = "false") boolean enabled;
+	private @Inject @ConfigProperty(name = "QUOTE_HEDGE_PERCENTILE", defaultValue = "95") double percentile;
+	private @Inject @ConfigProperty(name = "QUOTE_HEDGE_BUDGET", defaultValue = "0.05") double budget;
+
+	private @Inject @Metric(name="quote_hedges", absolute=true, description="Hedge calls sent to the stock-quote microservice") Counter hedges;
+	private @Inject @Metric(name="quote_hedge_wins", absolute=true, description="Hedge calls that answered before the original call") Counter wins;
+
+	@Resource
+	private ManagedScheduledExecutorService scheduler; //container-managed, like WriteBehind's timer
+
+	private final long[] latencies = new long[SAMPLES]; //ring buffer, in milliseconds
+	private int sampleCount = 0;
+	private long delay = -1; //no hedging until we have enough samples to know what slow looks like
+	private double tokens = 0;
+
+	@PostConstruct
+	void initialize() {
+		if (enabled) logger.info("Hedging stock quote calls at the p"+percentile+" latency, with a budget of "+(budget*100)+"% extra calls");
+	}
+
+	/** Makes the call, hedging it if enabled.  The supplier is invoked once, or twice if a hedge is sent. */
+	public CompletableFuture<Quote> call(String symbol, Supplier<CompletionStage<Quote>> request) {
+		long start = System.nanoTime();
+		CompletableFuture<Quote> primary = request.get().toCompletableFuture();
+		long hedgeDelay = enabled ? acquire() : -1;
+
+		//every primary counts, not just the ones that answer: leaving out the slow ones that got hedged (and cancelled)
+		//would drag the percentile, and so the hedge delay, ever lower.  A cancelled call took at least the hedge delay.
+		primary.whenComplete((quote, failure) -> {
+			long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			if (isCancellation(failure)) latency = Math.max(latency, hedgeDelay);
+			record(latency);
+		});
+		if (hedgeDelay < 0) return primary;
+
+		CompletableFuture<Quote> result = new CompletableFuture<Quote>();
+		AtomicReference<CompletableFuture<Quote>> hedgeRef = new AtomicReference<CompletableFuture<Quote>>();
+
+		ScheduledFuture<?> timer = scheduler.schedule(() -> {
+			if (primary.isDone() || !spendToken()) return;
+
+			logger.fine("No stock quote for "+symbol+" after "+hedgeDelay+" ms; sending a hedge call");
+			hedges.inc();
+			CompletableFuture<Quote> hedge = request.get().toCompletableFuture();
+			hedgeRef.set(hedge);
+			hedge.whenComplete((quote, failure) -> {
+				if (failure == null) {
+					if (result.complete(quote)) {
+						wins.inc();
+						primary.cancel(true);
+					}
+				} else if (primary.isCompletedExceptionally()) { //both failed
+					result.completeExceptionally(failure);
+				}
+			});
+		}, hedgeDelay, TimeUnit.MILLISECONDS);
+
+		primary.whenComplete((quote, failure) -> {
+			timer.cancel(false);
+			CompletableFuture<Quote> hedge = hedgeRef.get();
+			if (failure == null) {
+				if (result.complete(quote) && (hedge != null)) hedge.cancel(true);
+			} else if ((hedge == null) || hedge.isCompletedExceptionally()) { //otherwise let the hedge answer
+				result.completeExceptionally(failure);
+			}
+		});
+
+		return result;
+	}
+
+	private static boolean isCancellation(Throwable failure) {
+		if (failure instanceof CompletionException) failure = failure.getCause();
+		return failure instanceof CancellationException;
+	}
+
+	/** Adds this call's share of the hedge budget, and returns the current hedge delay (or -1 if not hedging) */
+	private synchronized long acquire() {
+		tokens = Math.min(tokens + budget, MAX_TOKENS);
+		return delay;
+	}
+
+	private synchronized boolean spendToken() {
+		if (tokens < 1) return false;
+		tokens--;
+		return true;
+	}
+
+	private synchronized void record(long latency) {
+		latencies[sampleCount % SAMPLES] = latency;
+		sampleCount++;
+
+		if ((sampleCount >= RECOMPUTE) && (sampleCount % RECOMPUTE == 0)) {
+			long[] sorted = Arrays.copyOf(latencies, Math.min(sampleCount, SAMPLES));
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+			delay = sorted[Math.max(0, Math.min(index, sorted.length-1))];
+			logger.fine("Stock quote hedge delay is now "+delay+" ms");
+		}
+	}
+
+	@Gauge(name="quote_hedge_delay", absolute=true, unit=MetricUnits.MILLISECONDS, description="How long a stock quote call waits before a hedge call is sent")
+	public synchronized long getDelay() {
+		return delay;
+	}
+
+	@Gauge(name="quote_hedge_win_rate", absolute=true, unit=MetricUnits.PERCENT, description="Percentage of hedge calls that answered before the original call")
+	public double getWinRate() {
+		long sent = hedges.getCount();
+		return (sent > 0) ? (100.0 * wins.getCount() / sent) : 0.0;
+	}
+}
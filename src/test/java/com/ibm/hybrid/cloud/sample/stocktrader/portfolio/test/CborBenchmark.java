@@ -0,0 +1,113 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.json.JsonStructure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.CborWriter;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.JsonWriter;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
+
+/** JMH comparison of the JSON and CBOR encodings of a page of 100 portfolios (GET /): encoding on our side, and
+ *  decoding into a generic tree on the caller's (JSON-P's reader versus CborReader).  The payload sizes are printed
+ *  at setup.  Run it like JsonSerializationBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CborBenchmark {
+
+    @Param({"1", "10", "50"})
+    private int stocks;
+
+    private Portfolio[] page;
+    private ByteArrayOutputStream out;
+    private byte[] json;
+    private byte[] cbor;
+
+    @Setup
+    public void setup() throws IOException {
+        page = new Portfolio[100];
+        for (int index = 0; index < page.length; index++) page[index] = JsonWriterTest.newPortfolio("Owner" + index, stocks);
+        out = new ByteArrayOutputStream(1 << 20);
+
+        json = encode(JsonWriter.of(out));
+        cbor = encode(CborWriter.of(out));
+        System.out.println("\n100 portfolios with " + stocks + " stocks each: JSON " + json.length + " bytes, CBOR " + cbor.length
+            + " bytes (" + (100 * cbor.length / json.length) + "%)");
+    }
+
+    @Benchmark
+    public int jsonEncode() throws IOException {
+        return encode(JsonWriter.of(out)).length;
+    }
+
+    @Benchmark
+    public int cborEncode() throws IOException {
+        return encode(CborWriter.of(out)).length;
+    }
+
+    @Benchmark
+    public JsonStructure jsonDecode() {
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(json))) {
+            return reader.read();
+        }
+    }
+
+    @Benchmark
+    public Object cborDecode() {
+        return CborReader.decode(cbor);
+    }
+
+    private byte[] encode(JsonWriter writer) throws IOException {
+        out.reset();
+        writer.beginArray();
+        for (Portfolio portfolio : page) writer.value(portfolio);
+        writer.endArray();
+        writer.close();
+        return out.toByteArray();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CborBenchmark.class.getSimpleName()).build()).run();
+    }
+}
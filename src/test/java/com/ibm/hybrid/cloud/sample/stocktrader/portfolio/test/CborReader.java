@@ -0,0 +1,105 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Decodes the CBOR that CborWriter produces into Maps, Lists, Strings, Longs, Doubles and nulls, the way a caller of
+ *  the CBOR endpoints would, for CborWriterTest and CborBenchmark.  Only covers the subset of RFC 7049 we write (plus
+ *  definite-length maps and arrays). */
+public class CborReader {
+    private static final Object BREAK = new Object();
+
+    private final byte[] bytes;
+    private int position = 0;
+
+    public CborReader(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static Object decode(byte[] bytes) {
+        return new CborReader(bytes).read();
+    }
+
+    public Object read() {
+        int initial = bytes[position++] & 0xff;
+        int majorType = initial >> 5;
+        int info = initial & 0x1f;
+
+        switch (majorType) {
+            case 0: return argument(info);
+            case 1: return -1 - argument(info);
+            case 3: {
+                int length = (int) argument(info);
+                String text = new String(bytes, position, length, StandardCharsets.UTF_8);
+                position += length;
+                return text;
+            }
+            case 4: {
+                List<Object> list = new ArrayList<Object>();
+                if (info == 31) {
+                    for (Object item = read(); item != BREAK; item = read()) list.add(item);
+                } else {
+                    for (long count = argument(info); count > 0; count--) list.add(read());
+                }
+                return list;
+            }
+            case 5: {
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                if (info == 31) {
+                    for (Object key = read(); key != BREAK; key = read()) map.put((String) key, read());
+                } else {
+                    for (long count = argument(info); count > 0; count--) map.put((String) read(), read());
+                }
+                return map;
+            }
+            case 7:
+                switch (info) {
+                    case 20: return Boolean.FALSE;
+                    case 21: return Boolean.TRUE;
+                    case 22: return null;
+                    case 26: return (double) Float.intBitsToFloat((int) bigEndian(4));
+                    case 27: return Double.longBitsToDouble(bigEndian(8));
+                    case 31: return BREAK;
+                    default: throw new IllegalArgumentException("Unsupported simple value " + info);
+                }
+            default:
+                throw new IllegalArgumentException("Unsupported major type " + majorType);
+        }
+    }
+
+    private long argument(int info) {
+        if (info < 24) return info;
+        switch (info) {
+            case 24: return bigEndian(1);
+            case 25: return bigEndian(2);
+            case 26: return bigEndian(4);
+            case 27: return bigEndian(8);
+            default: throw new IllegalArgumentException("Unsupported argument " + info);
+        }
+    }
+
+    private long bigEndian(int count) {
+        long value = 0;
+        for (int index = 0; index < count; index++) value = (value << 8) | (bytes[position++] & 0xff);
+        return value;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.CborWriter;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Feedback;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.JsonWritable;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.JsonWriter;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
+
+/** Checks that the CBOR encoding carries exactly the same data as the JSON one */
+public class CborWriterTest {
+
+    private Jsonb jsonb = JsonbBuilder.create();
+
+    @Test
+    public void testPortfolio() {
+        assertSameData(JsonWriterTest.newPortfolio("John", 5));
+        assertSameData(new Portfolio("Jane"));
+        assertSameData(JsonWriterTest.newPortfolio("Quote\" \\ \n \u00e9\u20ac\ud83d\ude00", 1));
+        assertSameData(new Portfolio("Numbers", 1.0E7, "Platinum", -0.001, 1.0E-5, Integer.MAX_VALUE, null, 0.0));
+    }
+
+    @Test
+    public void testFeedback() {
+        assertSameData(new Feedback("Thanks for the \"feedback\"", 3, "Joy"));
+    }
+
+    @Test
+    public void testArray() throws Exception {
+        Portfolio[] portfolios = { JsonWriterTest.newPortfolio("A", 2), JsonWriterTest.newPortfolio("B", 0), new Portfolio("C") };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = CborWriter.of(bytes);
+        writer.beginArray();
+        for (Portfolio portfolio : portfolios) writer.value(portfolio);
+        writer.endArray();
+        writer.close();
+
+        Object expected = normalize(jsonb.fromJson(jsonb.toJson(portfolios), List.class));
+        assertEquals(expected, normalize(CborReader.decode(bytes.toByteArray())));
+    }
+
+    @Test
+    public void testEncoding() {
+        //{"free": 0, "message": "a"} is bf 64 "free" 00 67 "message" 61 "a" ff
+        byte[] expected = { (byte) 0xbf, 0x64, 'f', 'r', 'e', 'e', 0x00, 0x67, 'm', 'e', 's', 's', 'a', 'g', 'e', 0x61, 'a', (byte) 0xff };
+        assertArrayEquals(expected, CborWriter.toCbor(new Feedback("a", 0, null)));
+    }
+
+    @Test
+    public void testSmaller() {
+        Portfolio portfolio = JsonWriterTest.newPortfolio("John", 20);
+        int json = portfolio.toString().length();
+        int cbor = CborWriter.toCbor(portfolio).length;
+        assertTrue("CBOR was " + cbor + " bytes, JSON " + json, cbor < json);
+    }
+
+    private void assertSameData(JsonWritable object) {
+        Object expected = normalize(jsonb.fromJson(jsonb.toJson(object), Map.class));
+        assertEquals(expected, normalize(CborReader.decode(CborWriter.toCbor(object))));
+    }
+
+    /** Numbers as doubles, since JSON doesn't say whether 0 and 0.0 differ, and a float32 in CBOR is still exact */
+    @SuppressWarnings("unchecked")
+    static Object normalize(Object value) {
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value instanceof Map) {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) map.put(entry.getKey(), normalize(entry.getValue()));
+            return map;
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<Object>();
+            for (Object item : (List<Object>) value) list.add(normalize(item));
+            return list;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao.CoalescingQueue;
+
+public class CoalescingQueueTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCoalesces() {
+        CoalescingQueue<String, List<String>> queue = new CoalescingQueue<String, List<String>>(ArrayList::new, this::record, executor);
+        assertFalse(queue.update("owner1", values -> values.add("IBM")));
+        assertTrue("A second update for the same key should be coalesced", queue.update("owner1", values -> values.add("AAPL")));
+        assertFalse(queue.update("owner2", values -> values.add("GOOG")));
+        assertEquals(2, queue.size());
+
+        queue.remove("owner2");
+        queue.flush();
+        assertEquals(Arrays.asList(Arrays.asList("owner1")), batches);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFlushAndWaitUsesExecutor() {
+        Thread caller = Thread.currentThread();
+        List<Thread> writers = new ArrayList<Thread>();
+        CoalescingQueue<String, List<String>> queue = new CoalescingQueue<String, List<String>>(ArrayList::new, batch -> {
+            writers.add(Thread.currentThread());
+            record(batch);
+        }, executor);
+
+        queue.update("owner1", values -> values.add("IBM"));
+        queue.flushAndWait();
+
+        assertEquals("The batch should be written before flushAndWait returns", 1, batches.size());
+        assertEquals(1, writers.size());
+        assertNotSame("The batch should be written in the executor's thread, not the caller's", caller, writers.get(0));
+    }
+
+    @Test
+    public void testFlushWaitsForRunningFlush() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingQueue<String, List<String>> queue = new CoalescingQueue<String, List<String>>(ArrayList::new, batch -> {
+            record(batch);
+            if (batches.size() == 1) { //hold up the first flush
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, executor);
+
+        queue.update("owner1", values -> values.add("IBM"));
+        CompletableFuture<Void> first = CompletableFuture.runAsync(queue::flush, executor);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        queue.update("owner2", values -> values.add("AAPL")); //queued while the first flush is running
+        CompletableFuture<Void> second = CompletableFuture.runAsync(queue::flush, executor);
+        Thread.sleep(200);
+        assertFalse("A flush shouldn't return while another is running", second.isDone());
+
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals("What was queued during the first flush should be written by the second",
+            Arrays.asList(Arrays.asList("owner1"), Arrays.asList("owner2")), batches);
+        assertEquals(0, queue.size());
+    }
+
+    private void record(Map<String, List<String>> batch) {
+        batches.add(new ArrayList<String>(batch.keySet()));
+    }
+}
@@ -0,0 +1,327 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao.GroupCommitQueue;
+
+public class GroupCommitQueueTest {
+
+    private static final long WINDOW = 60000; //long enough that only commit() or a full batch starts one
+    private static final long TIMEOUT = 10000;
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private final Recorder transactions = new Recorder();
+
+    @After
+    public void shutdown() {
+        scheduler.shutdownNow();
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void testSharesOneCommit() throws Exception {
+        GroupCommitQueue queue = queue(WINDOW, 64);
+        CompletableFuture<String> first = submit(queue, "owner1", "IBM");
+        CompletableFuture<String> second = submit(queue, "owner2", "AAPL");
+        CompletableFuture<String> third = submit(queue, "owner3", "GOOG");
+        assertFalse("Nothing should commit before the window ends", first.isDone());
+
+        queue.commit();
+        assertEquals("IBM", first.get(5, TimeUnit.SECONDS));
+        assertEquals("AAPL", second.get(5, TimeUnit.SECONDS));
+        assertEquals("GOOG", third.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("begin", "run IBM", "flush owner1", "run AAPL", "flush owner2", "run GOOG", "flush owner3", "commit"), transactions.log);
+        assertEquals(Arrays.asList(3), transactions.groups);
+    }
+
+    @Test
+    public void testFullBatchCommitsEarly() throws Exception {
+        GroupCommitQueue queue = queue(WINDOW, 2);
+        CompletableFuture<String> first = submit(queue, "owner1", "IBM");
+        CompletableFuture<String> second = submit(queue, "owner2", "AAPL");
+
+        assertEquals("IBM", first.get(5, TimeUnit.SECONDS));
+        assertEquals("AAPL", second.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(2), transactions.groups);
+    }
+
+    @Test
+    public void testWindowEnds() throws Exception {
+        GroupCommitQueue queue = queue(100, 64);
+        assertEquals("IBM", submit(queue, "owner1", "IBM").get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1), transactions.groups);
+    }
+
+    @Test
+    public void testOneTradePerOwnerPerGroup() throws Exception {
+        GroupCommitQueue queue = queue(WINDOW, 64);
+        CompletableFuture<String> first = submit(queue, "owner1", "IBM");
+        CompletableFuture<String> second = submit(queue, "owner1", "AAPL");
+        CompletableFuture<String> third = submit(queue, "owner2", "GOOG");
+
+        queue.commit();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        third.get(5, TimeUnit.SECONDS);
+        assertEquals("An owner's second trade should be in the next group, after its first has committed",
+            Arrays.asList("begin", "run IBM", "flush owner1", "run GOOG", "flush owner2", "commit",
+                          "begin", "run AAPL", "flush owner1", "commit"), transactions.log);
+        assertEquals(Arrays.asList(2, 1), transactions.groups);
+    }
+
+    @Test
+    public void testOneTransactionPerShard() throws Exception {
+        //owners starting with the same letter are in the same shard
+        GroupCommitQueue queue = new GroupCommitQueue(transactions, GroupCommitQueueTest::partition, scheduler, WINDOW, 64, TIMEOUT);
+        CompletableFuture<String> first = submit(queue, "alice", "IBM");
+        CompletableFuture<String> second = submit(queue, "bob", "AAPL");
+        CompletableFuture<String> third = submit(queue, "anne", "GOOG");
+
+        queue.commit();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        third.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("begin", "run IBM", "flush alice", "run GOOG", "flush anne", "commit",
+                                   "begin", "run AAPL", "flush bob", "commit"), transactions.log);
+    }
+
+    @Test
+    public void testFailedTradeOnlyFailsItsCaller() throws Exception {
+        GroupCommitQueue queue = queue(WINDOW, 64);
+        CompletableFuture<String> first = submit(queue, "owner1", "IBM");
+        CompletableFuture<String> second = submitWork(queue, "owner2", () -> {
+            transactions.log.add("run FAIL");
+            throw new IllegalArgumentException("No such portfolio: owner2");
+        });
+        CompletableFuture<String> third = submit(queue, "owner3", "GOOG");
+
+        queue.commit();
+        assertEquals("IBM", first.get(5, TimeUnit.SECONDS));
+        assertEquals("GOOG", third.get(5, TimeUnit.SECONDS));
+        assertCause(second, IllegalArgumentException.class);
+        assertEquals("The others should be run again without the failed trade",
+            Arrays.asList("begin", "run IBM", "flush owner1", "run FAIL", "rollback",
+                          "begin", "run IBM", "flush owner1", "run GOOG", "flush owner3", "commit"), transactions.log);
+        assertEquals(Arrays.asList(2), transactions.groups);
+    }
+
+    @Test
+    public void testFlushFailureFailsItsOwnTrade() throws Exception {
+        transactions.failFlush = "owner1"; //say a constraint its changes break
+        GroupCommitQueue queue = queue(WINDOW, 64);
+        CompletableFuture<String> first = submit(queue, "owner1", "IBM");
+        CompletableFuture<String> second = submit(queue, "owner2", "AAPL");
+
+        queue.commit();
+        assertCause(first, IllegalStateException.class);
+        assertEquals("AAPL", second.get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("begin", "run IBM", "rollback", "begin", "run AAPL", "flush owner2", "commit"), transactions.log);
+    }
+
+    @Test
+    public void testFailedCommitRetriesEachTrade() throws Exception {
+        transactions.failCommits = 1;
+        GroupCommitQueue queue = queue(WINDOW, 64);
+        CompletableFuture<String> first = submit(queue, "owner1", "IBM");
+        CompletableFuture<String> second = submit(queue, "owner2", "AAPL");
+
+        queue.commit();
+        assertEquals("IBM", first.get(5, TimeUnit.SECONDS));
+        assertEquals("AAPL", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, transactions.retries);
+        assertEquals("Each trade should be committed alone", Arrays.asList(1, 1), transactions.groups);
+    }
+
+    @Test
+    public void testTimesOutWhileWaiting() throws Exception {
+        GroupCommitQueue queue = queue(WINDOW, 64, 200);
+        CompletableFuture<String> trade = submit(queue, "owner1", "IBM");
+
+        Throwable cause = assertCause(trade, TimeoutException.class);
+        assertTrue("A trade that never ran should say so: "+cause.getMessage(), cause.getMessage().contains("not run"));
+        assertEquals("It should be taken out of the queue", 0, queue.size());
+        queue.commit();
+        assertTrue("so it never runs", transactions.log.isEmpty());
+    }
+
+    @Test
+    public void testTimesOutWhileCommitting() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GroupCommitQueue queue = queue(WINDOW, 64, 200);
+        CompletableFuture<String> trade = submitWork(queue, "owner1", () -> {
+            running.countDown();
+            release.await();
+            transactions.log.add("run IBM");
+            return "IBM";
+        });
+
+        CompletableFuture<Void> commit = CompletableFuture.runAsync(queue::commit, callers);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        Throwable cause = assertCause(trade, TimeoutException.class);
+        assertTrue("A trade that's running should say it may still commit: "+cause.getMessage(), cause.getMessage().contains("may yet"));
+
+        release.countDown();
+        commit.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("begin", "run IBM", "flush owner1", "commit"), transactions.log);
+    }
+
+    @Test
+    public void testShutdownFailsWaitingTrades() throws Exception {
+        GroupCommitQueue queue = queue(WINDOW, 64);
+        CompletableFuture<String> first = submit(queue, "owner1", "IBM");
+        CompletableFuture<String> second = submit(queue, "owner2", "AAPL");
+
+        queue.shutdown();
+        assertCause(first, IllegalStateException.class);
+        assertCause(second, IllegalStateException.class);
+        assertCause(submit(queue, "owner3", "GOOG"), IllegalStateException.class);
+
+        queue.commit();
+        assertTrue("Nothing should run after shutdown", transactions.log.isEmpty());
+    }
+
+    @Test
+    public void testShutdownLetsCommittingGroupFinish() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GroupCommitQueue queue = queue(WINDOW, 64);
+        CompletableFuture<String> trade = submitWork(queue, "owner1", () -> {
+            running.countDown();
+            release.await();
+            return "IBM";
+        });
+
+        CompletableFuture.runAsync(queue::commit, callers);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        queue.shutdown();
+        release.countDown();
+        assertEquals("IBM", trade.get(5, TimeUnit.SECONDS));
+    }
+
+    private GroupCommitQueue queue(long window, int batchSize) {
+        return queue(window, batchSize, TIMEOUT);
+    }
+
+    private GroupCommitQueue queue(long window, int batchSize, long timeout) {
+        return new GroupCommitQueue(transactions, owners -> Collections.singletonMap("", new ArrayList<String>(owners)), scheduler, window, batchSize, timeout);
+    }
+
+    private static Map<String, List<String>> partition(Collection<String> owners) {
+        Map<String, List<String>> partitions = new LinkedHashMap<String, List<String>>();
+        for (String owner : owners) partitions.computeIfAbsent(owner.substring(0, 1), shard -> new ArrayList<String>()).add(owner);
+        return partitions;
+    }
+
+    /** Submits a trade that just records that it ran, from another thread, once the ones before it are queued */
+    private CompletableFuture<String> submit(GroupCommitQueue queue, String owner, String symbol) throws InterruptedException {
+        return submitWork(queue, owner, () -> {
+            transactions.log.add("run "+symbol);
+            return symbol;
+        });
+    }
+
+    /** Runs queue.submit in another thread, as a request would, and returns once the work is queued */
+    private CompletableFuture<String> submitWork(GroupCommitQueue queue, String owner, Callable<String> work) throws InterruptedException {
+        int queued = queue.size();
+        CompletableFuture<String> result = new CompletableFuture<String>();
+        callers.execute(() -> {
+            try {
+                result.complete(queue.submit(owner, work));
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        for (int wait=0; (queue.size() == queued) && !result.isDone() && (wait < 500); wait++) Thread.sleep(10);
+        return result;
+    }
+
+    private static Throwable assertCause(CompletableFuture<String> future, Class<? extends Throwable> expected) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected "+expected.getName());
+            return null;
+        } catch (ExecutionException ee) {
+            assertTrue("Got "+ee.getCause(), expected.isInstance(ee.getCause()));
+            return ee.getCause();
+        }
+    }
+
+    /** Records what the queue asks of the database, failing the flushes and commits it's told to */
+    private static class Recorder implements GroupCommitQueue.Transactions {
+        final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> groups = Collections.synchronizedList(new ArrayList<Integer>()); //the size of each commit
+        volatile String failFlush = null;
+        volatile int failCommits = 0;
+        volatile int retries = 0;
+
+        public void begin() {
+            log.add("begin");
+        }
+
+        public void flush(String owner) {
+            if (owner.equals(failFlush)) throw new IllegalStateException("Duplicate key for "+owner);
+            log.add("flush "+owner);
+        }
+
+        public void commit() {
+            if (failCommits > 0) {
+                failCommits--;
+                throw new IllegalStateException("Commit failed");
+            }
+            log.add("commit");
+        }
+
+        public void rollback() {
+            log.add("rollback");
+        }
+
+        public void committed(int trades) {
+            groups.add(trades);
+        }
+
+        public void retrying(int trades) {
+            retries++;
+        }
+    }
+}
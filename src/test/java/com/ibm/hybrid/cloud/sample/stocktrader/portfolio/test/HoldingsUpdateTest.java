@@ -0,0 +1,208 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.HoldingsUpdate;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Quote;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Stock;
+
+public class HoldingsUpdateTest {
+
+    private static final double DELTA = 0.001;
+
+    /** IBM at 100 and AAPL at 200, worth 1000 each */
+    private static Portfolio portfolio() {
+        Portfolio portfolio = new Portfolio("John", 2000.0, "Bronze", 50.0, 0.0, 0, "Unknown", 9.99);
+        holding(portfolio, "IBM", 10, 100.0);
+        holding(portfolio, "AAPL", 5, 200.0);
+        return portfolio;
+    }
+
+    private static Stock holding(Portfolio portfolio, String symbol, int shares, double price) {
+        Stock stock = new Stock(symbol, shares, 9.99, price, shares * price, "2019-06-10");
+        stock.setPortfolio(portfolio);
+        portfolio.getStockList().add(stock);
+        return stock;
+    }
+
+    private static Stock find(Portfolio portfolio, String symbol) {
+        for (Stock stock : portfolio.getStockList()) {
+            if (symbol.equals(stock.getSymbol())) return stock;
+        }
+        return null;
+    }
+
+    private static Map<String, Quote> quotes(Quote... quotes) {
+        Map<String, Quote> map = new HashMap<String, Quote>();
+        for (Quote quote : quotes) map.put(quote.getSymbol(), quote);
+        return map;
+    }
+
+    @Test
+    public void testNewSymbol() {
+        Portfolio portfolio = portfolio();
+        HoldingsUpdate update = new HoldingsUpdate(portfolio);
+        update.apply("GOOG", 2, 9.99);
+
+        double total = update.finish(quotes(new Quote("GOOG", 1000.0, "2019-06-11")));
+        assertEquals(4000.0, total, DELTA);
+        assertEquals(total, portfolio.getTotal(), DELTA);
+        assertEquals(2000.0, update.getOldTotal(), DELTA);
+
+        Stock goog = find(portfolio, "GOOG");
+        assertEquals(1, update.getInserts().size());
+        assertSame(goog, update.getInserts().get(0));
+        assertTrue(update.getDeletes().isEmpty());
+        assertEquals(2, goog.getShares());
+        assertEquals(9.99, goog.getCommission(), DELTA);
+        assertEquals(2000.0, goog.getTotal(), DELTA);
+        assertEquals("2019-06-11", goog.getDate());
+        assertSame(portfolio, goog.getPortfolio());
+    }
+
+    @Test
+    public void testOnlyTradedHoldingsAreRequoted() {
+        Portfolio portfolio = portfolio();
+        HoldingsUpdate update = new HoldingsUpdate(portfolio);
+        update.apply("IBM", 5, 9.99);
+
+        //AAPL has a new quote too, but wasn't traded, so keeps its old price and share of the total
+        double total = update.finish(quotes(new Quote("IBM", 120.0, "2019-06-11"), new Quote("AAPL", 300.0, "2019-06-11")));
+        assertEquals(2000.0 - 1000.0 + 15 * 120.0, total, DELTA);
+        assertEquals(200.0, find(portfolio, "AAPL").getPrice(), DELTA);
+
+        Stock ibm = find(portfolio, "IBM");
+        assertEquals(15, ibm.getShares());
+        assertEquals(9.99 * 2, ibm.getCommission(), DELTA);
+        assertEquals(1800.0, ibm.getTotal(), DELTA);
+        assertTrue("An existing row is updated, not inserted", update.getInserts().isEmpty());
+        assertTrue(update.getDeletes().isEmpty());
+    }
+
+    @Test
+    public void testFullSellOut() {
+        Portfolio portfolio = portfolio();
+        Stock ibm = find(portfolio, "IBM");
+        HoldingsUpdate update = new HoldingsUpdate(portfolio);
+        update.apply("IBM", -10, 9.99);
+
+        double total = update.finish(quotes(new Quote("IBM", 120.0, "2019-06-11")));
+        assertEquals("Only AAPL should be left", 1000.0, total, DELTA);
+        assertEquals(1, update.getDeletes().size());
+        assertSame(ibm, update.getDeletes().get(0));
+        assertNull(find(portfolio, "IBM"));
+        assertEquals(1, portfolio.getStockList().size());
+    }
+
+    @Test
+    public void testMissingQuoteKeepsLastPrice() {
+        Portfolio portfolio = portfolio();
+        HoldingsUpdate update = new HoldingsUpdate(portfolio);
+        update.apply("IBM", 5, 9.99);
+
+        double total = update.finish(quotes()); //the lookup failed
+        assertEquals(2000.0 + 5 * 100.0, total, DELTA);
+        assertEquals("2019-06-10", find(portfolio, "IBM").getDate());
+    }
+
+    @Test
+    public void testUnpricedHoldingsDontCount() {
+        Portfolio portfolio = portfolio();
+        HoldingsUpdate update = new HoldingsUpdate(portfolio);
+        update.apply("GOOG", 2, 9.99); //never quoted, so price 0
+        update.apply("IBM", 5, 9.99); //-1 is the marker for the quote service failing
+
+        double total = update.finish(quotes(new Quote("IBM", -1.0, "2019-06-11")));
+        assertEquals("Only AAPL has a usable price", 1000.0, total, DELTA);
+
+        Stock goog = find(portfolio, "GOOG");
+        assertEquals(0.0, goog.getPrice(), DELTA);
+        assertEquals(0.0, goog.getTotal(), DELTA);
+        assertEquals("A new holding is inserted even without a quote", 1, update.getInserts().size());
+    }
+
+    @Test
+    public void testUnpricedHoldingIsntSubtractedTwice() {
+        Portfolio portfolio = new Portfolio("John", 1000.0, "Bronze", 50.0, 0.0, 0, "Unknown", 9.99);
+        holding(portfolio, "IBM", 10, 100.0);
+        holding(portfolio, "GOOG", 2, 0.0); //never quoted, so not in the old total either
+
+        HoldingsUpdate update = new HoldingsUpdate(portfolio);
+        update.apply("GOOG", 1, 9.99);
+        double total = update.finish(quotes(new Quote("GOOG", 1000.0, "2019-06-11")));
+        assertEquals(1000.0 + 3 * 1000.0, total, DELTA);
+    }
+
+    @Test
+    public void testMultipleLegsOnOneSymbol() {
+        Portfolio portfolio = portfolio();
+        HoldingsUpdate update = new HoldingsUpdate(portfolio);
+        update.apply("IBM", 5, 9.99);
+        update.apply("IBM", -3, 0.0); //a free trade
+        update.apply("IBM", 4, 8.99);
+
+        double total = update.finish(quotes(new Quote("IBM", 110.0, "2019-06-11")));
+        Stock ibm = find(portfolio, "IBM");
+        assertEquals(16, ibm.getShares());
+        assertEquals(9.99 * 2 + 8.99, ibm.getCommission(), DELTA);
+        assertEquals("The old IBM total should only be taken off once", 1000.0 + 16 * 110.0, total, DELTA);
+        assertTrue(update.getInserts().isEmpty());
+        assertTrue(update.getDeletes().isEmpty());
+    }
+
+    @Test
+    public void testSellOffThenBuyBack() {
+        Portfolio portfolio = portfolio();
+        Stock ibm = find(portfolio, "IBM");
+        HoldingsUpdate update = new HoldingsUpdate(portfolio);
+        update.apply("IBM", -10, 9.99);
+        update.apply("IBM", 3, 8.99);
+
+        double total = update.finish(quotes(new Quote("IBM", 110.0, "2019-06-11")));
+        assertSame("The row should be reused rather than deleted", ibm, find(portfolio, "IBM"));
+        assertEquals(3, ibm.getShares());
+        assertEquals("As if it were a new holding, only the buy-back's commission counts", 8.99, ibm.getCommission(), DELTA);
+        assertEquals(1000.0 + 330.0, total, DELTA);
+        assertTrue(update.getInserts().isEmpty());
+        assertTrue(update.getDeletes().isEmpty());
+    }
+
+    @Test
+    public void testBuyThenSellOffNewSymbol() {
+        Portfolio portfolio = portfolio();
+        HoldingsUpdate update = new HoldingsUpdate(portfolio);
+        update.apply("GOOG", 2, 9.99);
+        update.apply("GOOG", -2, 9.99);
+
+        double total = update.finish(quotes(new Quote("GOOG", 1000.0, "2019-06-11")));
+        assertEquals(2000.0, total, DELTA);
+        assertTrue("It never had a row, so there's nothing to insert", update.getInserts().isEmpty());
+        assertTrue("or to delete", update.getDeletes().isEmpty());
+        assertNull(find(portfolio, "GOOG"));
+    }
+}
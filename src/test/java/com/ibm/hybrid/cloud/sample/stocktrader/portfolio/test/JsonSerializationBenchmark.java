@@ -0,0 +1,111 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.JsonWriter;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
+
+/** JMH comparison of JSON-B against the hand-written serializers, for a single portfolio (GET /{owner}) and a page
+ *  of them (GET /).  It isn't run by the build; after mvn test-compile, run it with
+ *  java -cp target/test-classes:target/classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout)
+ *  com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test.JsonSerializationBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonSerializationBenchmark {
+
+    @Param({"1", "10", "50"})
+    private int stocks;
+
+    private Jsonb jsonb;
+    private Portfolio portfolio;
+    private Portfolio[] page;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() {
+        jsonb = JsonbBuilder.create();
+        portfolio = JsonWriterTest.newPortfolio("John", stocks);
+        page = new Portfolio[100];
+        for (int index = 0; index < page.length; index++) page[index] = JsonWriterTest.newPortfolio("Owner" + index, stocks);
+        out = new ByteArrayOutputStream(1 << 20);
+    }
+
+    @Benchmark
+    public int jsonbPortfolio() {
+        out.reset();
+        jsonb.toJson(portfolio, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int writerPortfolio() throws IOException {
+        out.reset();
+        JsonWriter writer = JsonWriter.of(out);
+        writer.value(portfolio);
+        writer.close();
+        return out.size();
+    }
+
+    @Benchmark
+    public int jsonbPage() {
+        out.reset();
+        jsonb.toJson(page, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int writerPage() throws IOException {
+        out.reset();
+        JsonWriter writer = JsonWriter.of(out);
+        writer.beginArray();
+        for (Portfolio element : page) writer.value(element);
+        writer.endArray();
+        writer.close();
+        return out.size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(JsonSerializationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.json.JsonStructure;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Feedback;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.JsonWriter;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.LoyaltyChange;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Stock;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.StockPurchase;
+
+/** Checks the hand-written serializers against what JSON-B writes for the same objects (and, for the Kafka and JMS
+ *  payloads, against the strings their old toString methods built) */
+public class JsonWriterTest {
+
+    private Jsonb jsonb = JsonbBuilder.create();
+
+    static Portfolio newPortfolio(String owner, int stocks) {
+        Portfolio portfolio = new Portfolio(owner, 123456.78, "Gold", 50.0, 99.9, 2, "Joy", 9.99);
+        for (int index = 0; index < stocks; index++) {
+            Stock stock = new Stock("SYM" + index, index + 1, 9.99, 100.0 + index / 3.0, (index + 1) * (100.0 + index / 3.0), "2019-08-01");
+            stock.setPortfolio(portfolio);
+            portfolio.addStock(stock);
+        }
+        return portfolio;
+    }
+
+    @Test
+    public void testPortfolio() {
+        Portfolio portfolio = newPortfolio("John", 5);
+        assertEquals(jsonb.toJson(portfolio), portfolio.toString());
+    }
+
+    @Test
+    public void testNullsAndNoStocks() {
+        Portfolio portfolio = new Portfolio("Jane");
+        assertEquals(jsonb.toJson(portfolio), portfolio.toString());
+
+        portfolio.addStock(new Stock("IBM")); //no date
+        assertEquals(jsonb.toJson(portfolio), portfolio.toString());
+    }
+
+    @Test
+    public void testEscaping() {
+        Portfolio portfolio = newPortfolio("Quote\" back\\slash\b\f\n\r\t\u0001\u001f/ \u00e9\u20ac\ud83d\ude00", 1);
+        assertEquals(jsonb.toJson(portfolio), portfolio.toString());
+    }
+
+    @Test
+    public void testNumbers() {
+        Portfolio portfolio = new Portfolio("Numbers", 1.0E7, "Platinum", -0.001, 1.0E-5, Integer.MAX_VALUE, null, 0.0);
+        assertEquals(jsonb.toJson(portfolio), portfolio.toString());
+    }
+
+    @Test
+    public void testArray() throws Exception {
+        Portfolio[] portfolios = { newPortfolio("A", 2), newPortfolio("B", 0), new Portfolio("C") };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = JsonWriter.of(bytes);
+        writer.beginArray();
+        for (Portfolio portfolio : portfolios) writer.value(portfolio);
+        writer.endArray();
+        writer.close();
+        assertEquals(jsonb.toJson(portfolios), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLargerThanBuffer() throws Exception {
+        Portfolio portfolio = newPortfolio("Big", 500);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = JsonWriter.of(bytes);
+        writer.value(portfolio);
+        writer.close();
+        assertEquals(jsonb.toJson(portfolio), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        Portfolio portfolio = newPortfolio("John", 2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = JsonWriter.of(bytes);
+        portfolio.writeJson(writer, new TreeSet<String>(Arrays.asList("total", "loyalty")));
+        writer.close();
+        assertEquals("{\"loyalty\":\"Gold\",\"total\":123456.78}", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+        bytes.reset();
+        writer = JsonWriter.of(bytes);
+        portfolio.writeJson(writer, new TreeSet<String>(Portfolio.PROPERTIES));
+        writer.close();
+        assertEquals(portfolio.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testNestedWriter() throws Exception {
+        Portfolio portfolio = newPortfolio("Nested", 3);
+        String expected = portfolio.toString();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonWriter writer = JsonWriter.of(bytes)) { //has this thread's buffer, so toString has to use another
+            writer.beginArray();
+            writer.value(portfolio);
+            assertEquals(expected, portfolio.toString());
+            writer.endArray();
+        }
+        assertEquals("[" + expected + "]", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(expected, portfolio.toString()); //on the buffer handed back, which still holds the array
+    }
+
+    @Test
+    public void testFeedback() {
+        Feedback feedback = new Feedback("Thanks for the \"feedback\"", 3, "Joy");
+        assertEquals(jsonb.toJson(feedback), feedback.toString());
+    }
+
+    @Test
+    public void testPayloads() {
+        StockPurchase purchase = new StockPurchase("1234", "John", "IBM", 5, 140.25, "2019-08-01 12:34:56.789", 9.99);
+        assertEquals(parse("{\"id\": \"1234\", \"owner\": \"John\", \"symbol\": \"IBM\", \"shares\": 5, \"price\": 140.25, "
+                         + "\"when\": \"2019-08-01 12:34:56.789\", \"commission\": 9.99}"), parse(purchase.toString()));
+
+        LoyaltyChange change = new LoyaltyChange("John", "Silver", "Gold");
+        change.setId("5678");
+        assertEquals(parse("{\"owner\": \"John\", \"old\": \"Silver\", \"new\": \"Gold\", \"id\": \"5678\"}"), parse(change.toString()));
+    }
+
+    @Test
+    public void testEquals() {
+        assertEquals(newPortfolio("John", 3), newPortfolio("John", 3));
+        assertEquals(newPortfolio("John", 3).hashCode(), newPortfolio("John", 3).hashCode());
+        assertFalse(newPortfolio("John", 3).equals(newPortfolio("John", 2)));
+
+        Portfolio changed = newPortfolio("John", 3);
+        changed.getStock("SYM1").setShares(7);
+        assertFalse(newPortfolio("John", 3).equals(changed));
+    }
+
+    private static JsonStructure parse(String json) {
+        try (JsonReader reader = Json.createReader(new StringReader(json))) {
+            return reader.read();
+        }
+    }
+}
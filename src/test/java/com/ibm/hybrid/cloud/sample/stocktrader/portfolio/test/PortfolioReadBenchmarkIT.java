@@ -0,0 +1,85 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+
+/** Compares the JPA and JDBC read paths of GET /{owner}.  Run it once against a server with PORTFOLIO_READ_PATH=jpa
+ *  and once with PORTFOLIO_READ_PATH=jdbc, passing -Dbenchmark.jwt (a JWT the server accepts) and -Dbenchmark.owner
+ *  (an existing portfolio, ideally with a realistic number of stocks).  It prints the client-side latencies, plus
+ *  the server's portfolio_read_jpa / portfolio_read_jdbc timers, which isolate the database read from the quote
+ *  lookups.  Without a JWT, it's skipped.
+ */
+public class PortfolioReadBenchmarkIT {
+
+    private String port = System.getProperty("liberty.test.port");
+    private String warContext = System.getProperty("war.context");
+    private String jwt = System.getProperty("benchmark.jwt");
+    private String owner = System.getProperty("benchmark.owner", "benchmark");
+    private int warmup = Integer.getInteger("benchmark.warmup", 200);
+    private int iterations = Integer.getInteger("benchmark.iterations", 1000);
+    private String baseUrl = "http://localhost:" + port;
+
+    @Test
+    public void benchmarkGetPortfolio() throws Exception {
+        if (jwt == null) {
+            System.out.println("Skipping read path benchmark, since no benchmark.jwt was given");
+            return;
+        }
+
+        Client client = ClientBuilder.newClient();
+        String url = baseUrl + "/" + warContext + "/" + owner;
+        for (int i = 0; i < warmup; i++) get(client, url);
+
+        long[] latencies = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            get(client, url);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println("GET /" + owner + " over " + iterations + " calls: p50=" + micros(latencies[iterations / 2])
+            + " us, p99=" + micros(latencies[iterations * 99 / 100]) + " us, max=" + micros(latencies[iterations - 1]) + " us");
+
+        Response metrics = client.target(baseUrl + "/metrics/application").request().get();
+        for (String line : metrics.readEntity(String.class).split("\n")) {
+            if (line.startsWith("application_portfolio_read_")) System.out.println(line);
+        }
+        metrics.close();
+        client.close();
+    }
+
+    private void get(Client client, String url) {
+        Response response = client.target(url).request().header("Authorization", "Bearer " + jwt).get();
+        int responseCode = response.getStatus();
+        response.close();
+        assertTrue("Incorrect response code: " + responseCode, responseCode == 200);
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+}
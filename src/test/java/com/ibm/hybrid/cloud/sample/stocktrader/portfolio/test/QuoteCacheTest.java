@@ -0,0 +1,117 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Quote;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.quote.QuoteCache;
+
+public class QuoteCacheTest {
+
+    private static final long TTL = 200;
+    private static final long STALE = 400;
+
+    private final AtomicLong now = new AtomicLong(); //the cache's clock, in nanoseconds, moved along by each test
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void testExpiry() {
+        QuoteCache cache = new QuoteCache(TTL, STALE, 10, now::get);
+        cache.put(new Quote("IBM", 130.0, "2019-06-10"));
+
+        QuoteCache.Entry entry = cache.get("IBM");
+        assertNotNull("A new quote should be served", entry);
+        assertFalse("A new quote shouldn't be stale", entry.isStale());
+        assertNotNull(cache.getFresh("IBM"));
+
+        advance(TTL); //still fresh, right at the TTL
+        assertNotNull(cache.getFresh("IBM"));
+
+        advance(1); //past the TTL, but within the stale window
+        entry = cache.get("IBM");
+        assertNotNull("A stale quote should still be served", entry);
+        assertTrue(entry.isStale());
+        assertNull("A stale quote isn't fresh", cache.getFresh("IBM"));
+
+        advance(STALE); //past the stale window too
+        assertNull("An expired quote should be a miss", cache.get("IBM"));
+        assertEquals(100.0 * 2 / 3, cache.getHitRatio(), 0.01); //a fresh hit, a stale hit and a miss
+    }
+
+    @Test
+    public void testPutRenews() {
+        QuoteCache cache = new QuoteCache(TTL, STALE, 10, now::get);
+        cache.put(new Quote("IBM", 130.0, "2019-06-10"));
+
+        advance(TTL + 1);
+        assertTrue(cache.get("IBM").isStale());
+
+        cache.put(new Quote("IBM", 131.0, "2019-06-11")); //as a background refresh does
+        QuoteCache.Entry entry = cache.get("IBM");
+        assertFalse("A refreshed quote should be fresh again", entry.isStale());
+        assertEquals(131.0, entry.getQuote().getPrice(), 0.001);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        QuoteCache cache = new QuoteCache(TTL * 100, STALE, 3);
+        cache.put(new Quote("IBM", 130.0, "2019-06-10"));
+        cache.put(new Quote("AAPL", 190.0, "2019-06-10"));
+        cache.put(new Quote("GOOG", 1080.0, "2019-06-10"));
+        assertNotNull(cache.get("IBM")); //now AAPL is the least recently used
+
+        cache.put(new Quote("MSFT", 130.0, "2019-06-10"));
+        assertEquals(3, cache.getSize());
+        assertNull("The least recently used quote should be evicted", cache.get("AAPL"));
+        assertNotNull(cache.get("IBM"));
+        assertNotNull(cache.get("GOOG"));
+        assertNotNull(cache.get("MSFT"));
+    }
+
+    @Test
+    public void testOneRefresher() {
+        QuoteCache cache = new QuoteCache(TTL, STALE, 10);
+        cache.put(new Quote("IBM", 130.0, "2019-06-10"));
+        QuoteCache.Entry entry = cache.get("IBM");
+
+        assertTrue(entry.claimRefresh());
+        assertFalse("Only one caller should refresh an entry", entry.claimRefresh());
+        entry.refreshFailed();
+        assertTrue("A failed refresh should let the next caller try", entry.claimRefresh());
+    }
+
+    @Test
+    public void testDisabled() {
+        QuoteCache cache = new QuoteCache(0, STALE, 10);
+        cache.put(new Quote("IBM", 130.0, "2019-06-10"));
+        assertNull(cache.get("IBM"));
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao.ReplicaRouter;
+
+/** Checks which EntityManager the router hands each query to, with a fake replica and a clock the test moves along */
+public class ReplicaRouterTest {
+
+    private static final long STALENESS = 5000;
+
+    private final AtomicLong now = new AtomicLong(1000000);
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private final EntityManager primary = entityManager("primary");
+    private final EntityManager replicaManager = entityManager("replica");
+    private ReplicaRouter router;
+
+    @Before
+    public void setUp() {
+        EntityManagerFactory replica = (EntityManagerFactory) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { EntityManagerFactory.class }, (proxy, method, args) -> {
+                if (method.getName().equals("createEntityManager")) {
+                    opened.incrementAndGet();
+                    return replicaManager;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+        router = new ReplicaRouter(replica, STALENESS, now::get);
+    }
+
+    /** A stand-in that only knows its name, and counts how often it's closed */
+    private EntityManager entityManager(String name) {
+        return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { EntityManager.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close": closed.incrementAndGet(); return null;
+                    case "toString": return name;
+                    case "hashCode": return name.hashCode();
+                    case "equals": return proxy == args[0];
+                    default: throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    private EntityManager read(String owner) {
+        return router.read(owner, primary, Function.identity());
+    }
+
+    @Test
+    public void testReadsGoToReplica() {
+        assertSame(replicaManager, read("John"));
+        assertSame("Queries spanning owners can use the replica", replicaManager, read(null));
+        assertEquals(2, opened.get());
+        assertEquals("Each replica EntityManager should be closed", 2, closed.get());
+    }
+
+    @Test
+    public void testRecentWriteStaysOnPrimary() {
+        router.written("John");
+        assertSame("A read just after a write should see it", primary, read("John"));
+        assertSame("Other owners aren't affected", replicaManager, read("Jane"));
+
+        now.addAndGet(STALENESS); //still within the window
+        assertSame(primary, read("John"));
+
+        now.addAndGet(1); //past it, so the replica has caught up
+        assertSame(replicaManager, read("John"));
+    }
+
+    @Test
+    public void testOwnersStayOnPrimaryIfAnyWasWritten() {
+        router.written("Jane");
+        assertSame(primary, router.readOwners(Arrays.asList("John", "Jane"), primary, Function.identity()));
+        assertSame(replicaManager, router.readOwners(Arrays.asList("John", "Bob"), primary, Function.identity()));
+
+        now.addAndGet(STALENESS + 1);
+        assertSame(replicaManager, router.readOwners(Arrays.asList("John", "Jane"), primary, Function.identity()));
+    }
+
+    @Test
+    public void testFallsBackToPrimary() {
+        EntityManager used = router.read("John", primary, em -> {
+            if (em == replicaManager) throw new PersistenceException("replica unavailable");
+            return em;
+        });
+        assertSame("A failed replica query should be retried on the primary", primary, used);
+        assertEquals("The replica EntityManager should still be closed", 1, closed.get());
+    }
+
+    @Test
+    public void testNoReplica() {
+        ReplicaRouter router = new ReplicaRouter(null, STALENESS, now::get);
+        assertSame(primary, router.read("John", primary, Function.identity()));
+        assertSame(primary, router.read(null, primary, Function.identity()));
+        router.written("John"); //nothing to track
+    }
+}
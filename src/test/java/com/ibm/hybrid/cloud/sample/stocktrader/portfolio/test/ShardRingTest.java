@@ -0,0 +1,77 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao.ShardRing;
+
+public class ShardRingTest {
+
+    private static final int OWNERS = 10000;
+
+    @Test
+    public void testSpread() {
+        ShardRing ring = new ShardRing(Arrays.asList("shard0", "shard1", "shard2", "shard3"), 100);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int owner = 0; owner < OWNERS; owner++) {
+            counts.merge(ring.getShard("owner" + owner), 1, Integer::sum);
+        }
+
+        assertEquals("Every shard should get owners", 4, counts.size());
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            int count = entry.getValue();
+            assertTrue(entry.getKey() + " got " + count + " of " + OWNERS + " owners", (count > OWNERS / 8) && (count < OWNERS / 2));
+        }
+    }
+
+    @Test
+    public void testAddingShardMovesFewOwners() {
+        ShardRing before = new ShardRing(Arrays.asList("shard0", "shard1", "shard2", "shard3"), 100);
+        ShardRing after = new ShardRing(Arrays.asList("shard0", "shard1", "shard2", "shard3", "shard4"), 100);
+
+        int moved = 0;
+        for (int owner = 0; owner < OWNERS; owner++) {
+            String key = "owner" + owner;
+            String oldShard = before.getShard(key);
+            String newShard = after.getShard(key);
+            if (!oldShard.equals(newShard)) {
+                moved++;
+                assertEquals("Owners should only move to the new shard", "shard4", newShard);
+            }
+        }
+
+        //about a fifth should move; a plain hash modulo the shard count would move about four fifths
+        assertTrue("Moved " + moved + " of " + OWNERS + " owners", (moved > OWNERS / 10) && (moved < OWNERS * 3 / 10));
+    }
+
+    @Test
+    public void testStableMapping() {
+        ShardRing ring = new ShardRing(Arrays.asList("jdbc/Portfolio/Shard0", "jdbc/Portfolio/Shard1"), 100);
+        ShardRing again = new ShardRing(Arrays.asList("jdbc/Portfolio/Shard0", "jdbc/Portfolio/Shard1"), 100);
+        for (int owner = 0; owner < 1000; owner++) {
+            assertEquals(ring.getShard("owner" + owner), again.getShard("owner" + owner));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+       Copyright 2019 IBM Corp All Rights Reserved
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.ibm.hybrid.cloud.sample.stocktrader.portfolio.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao.PortfolioDao;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.dao.ShardRouter;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Portfolio;
+import com.ibm.hybrid.cloud.sample.stocktrader.portfolio.json.Stock;
+
+/** Runs PortfolioDao, sharded, against several in-memory Derby databases, each through its own resource-local
+ *  jpa-unit factory standing in for a shard's container-managed persistence context */
+public class ShardedPortfolioDaoTest {
+
+    private static final int SHARDS = 3;
+    private static final List<String> OWNERS = Arrays.asList("Alice", "Bob", "Carol", "Dave", "Eve", "Frank", "Grace", "Heidi", "Ivan", "Judy");
+
+    private final Map<String, EntityManagerFactory> factories = new LinkedHashMap<String, EntityManagerFactory>();
+    private final Map<String, EntityManager> shards = new LinkedHashMap<String, EntityManager>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(SHARDS);
+    private ShardRouter router;
+    private PortfolioDao dao;
+
+    @Before
+    public void createShards() {
+        for (int index=0; index<SHARDS; index++) {
+            String shard = "persistence/Shard"+index;
+            EntityManagerFactory factory = Persistence.createEntityManagerFactory("jpa-unit", properties(index));
+            factories.put(shard, factory);
+            shards.put(shard, factory.createEntityManager());
+        }
+        router = new ShardRouter(shards, 100, executor);
+        dao = new PortfolioDao(router);
+
+        for (String owner : OWNERS) inTransaction(() -> dao.createPortfolio(portfolio(owner)));
+    }
+
+    @After
+    public void dropShards() {
+        executor.shutdownNow();
+        for (EntityManager em : shards.values()) em.close();
+        for (EntityManagerFactory factory : factories.values()) factory.close();
+        for (int index=0; index<SHARDS; index++) {
+            try {
+                DriverManager.getConnection(url(index)+";drop=true");
+            } catch (SQLException expected) { //Derby reports a successful drop as an exception
+            }
+        }
+    }
+
+    @Test
+    public void testEachOwnerIsOnlyOnItsShard() {
+        Set<String> used = new HashSet<String>();
+        for (String owner : OWNERS) {
+            String home = router.getShard(owner);
+            used.add(home);
+            for (Map.Entry<String, EntityManagerFactory> shard : factories.entrySet()) {
+                EntityManager em = shard.getValue().createEntityManager();
+                try {
+                    Portfolio found = em.find(Portfolio.class, owner);
+                    if (shard.getKey().equals(home)) {
+                        assertNotNull(owner+" should be on "+home, found);
+                        assertEquals(1, found.getStockList().size());
+                    } else {
+                        assertNull(owner+" should only be on "+home+", not "+shard.getKey(), found);
+                    }
+                } finally {
+                    em.close();
+                }
+            }
+        }
+        assertTrue("The owners should be spread over more than one shard", used.size() > 1);
+    }
+
+    @Test
+    public void testReadsOneOwnerFromItsShard() {
+        for (String owner : OWNERS) {
+            Portfolio portfolio = dao.readPortfolioWithStocks(owner, false);
+            assertNotNull(owner, portfolio);
+            assertEquals(owner, portfolio.getOwner());
+            assertEquals("IBM", portfolio.getStockList().get(0).getSymbol());
+        }
+        assertNull(dao.readPortfolioWithStocks("Nobody", false));
+    }
+
+    @Test
+    public void testReadsSeveralOwnersAcrossShards() {
+        List<String> asked = Arrays.asList("Alice", "Eve", "Judy", "Nobody");
+        List<String> found = new ArrayList<String>();
+        for (Portfolio portfolio : dao.readPortfoliosWithStocks(asked, true)) found.add(portfolio.getOwner());
+
+        found.sort(null);
+        assertEquals(Arrays.asList("Alice", "Eve", "Judy"), found);
+    }
+
+    @Test
+    public void testGathersEveryShardInOwnerOrder() {
+        assertEquals(OWNERS, owners(dao.readAllPortfolios()));
+
+        assertEquals(Arrays.asList("Alice", "Bob", "Carol", "Dave"), owners(dao.readPortfolios(null, 4)));
+        assertEquals(Arrays.asList("Eve", "Frank", "Grace", "Heidi"), owners(dao.readPortfolios("Dave", 4)));
+        assertEquals(Arrays.asList("Ivan", "Judy"), owners(dao.readPortfolios("Heidi", 4)));
+    }
+
+    @Test
+    public void testWritesGoToTheOwnersShard() {
+        inTransaction(() -> dao.updateLoyalty("Carol", "Gold"));
+        inTransaction(() -> dao.deletePortfolio(dao.readPortfolioWithStocks("Dave", false)));
+
+        EntityManager em = factories.get(router.getShard("Carol")).createEntityManager();
+        try {
+            em.getEntityManagerFactory().getCache().evictAll();
+            assertEquals("Gold", em.find(Portfolio.class, "Carol").getLoyalty());
+        } finally {
+            em.close();
+        }
+        assertNull(dao.readPortfolioWithStocks("Dave", false));
+        assertEquals(OWNERS.size() - 1, dao.readAllPortfolios().size());
+    }
+
+    /** Runs this in a transaction on every shard, as the one JTA transaction would in the container */
+    private void inTransaction(Runnable work) {
+        for (EntityManager em : shards.values()) em.getTransaction().begin();
+        work.run();
+        for (EntityManager em : shards.values()) em.getTransaction().commit();
+    }
+
+    private static Portfolio portfolio(String owner) {
+        Portfolio portfolio = new Portfolio(owner, 1000.0, "Bronze", 50.0, 0.0, 0, "Unknown", 9.99);
+        Stock stock = new Stock("IBM", 10, 9.99, 100.0, 1000.0, "2019-06-10");
+        stock.setPortfolio(portfolio);
+        portfolio.getStockList().add(stock);
+        return portfolio;
+    }
+
+    private static List<String> owners(List<Portfolio> portfolios) {
+        List<String> owners = new ArrayList<String>();
+        for (Portfolio portfolio : portfolios) owners.add(portfolio.getOwner());
+        return owners;
+    }
+
+    private static String url(int index) {
+        return "jdbc:derby:memory:ShardedPortfolioDaoTest"+index;
+    }
+
+    /** jpa-unit, but resource-local, on an in-memory database, the way ReplicaRouter overrides it for the replica */
+    private static Map<String, Object> properties(int index) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("javax.persistence.transactionType", "RESOURCE_LOCAL");
+        properties.put("javax.persistence.jtaDataSource", "");
+        properties.put("javax.persistence.jdbc.driver", "org.apache.derby.jdbc.EmbeddedDriver");
+        properties.put("javax.persistence.jdbc.url", url(index)+";create=true");
+        properties.put("eclipselink.ddl-generation", "create-tables");
+        properties.put("eclipselink.ddl-generation.output-mode", "database");
+        properties.put("eclipselink.weaving", "false"); //no agent outside the container
+        return properties;
+    }
+}